@@ -1,5 +1,10 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
+import java.lang.reflect.*;
+import java.math.BigInteger;
+import java.nio.file.*;
+import java.security.*;
 public class Laser {
     public static final int NORTH = 0;
     public static final int EAST = 1;
@@ -11,34 +16,156 @@ public class Laser {
     public static final int NUMBER_MODE = 12;
     public static final int RAW_MODE = 13;
     
-    public static final Set<Character> MIRRORS = new HashSet<Character>(Arrays.asList('\\', '/', '>', '<', '^', 'v')); 
-    public static final Set<Character> BIN_OPS = new HashSet<Character>(Arrays.asList('+', '-', '×', '÷', '*', '&', '|', '%', 'g', 'l', '='));
-    public static final Set<Character> UNARY_OPS = new HashSet<Character>(Arrays.asList('(', ')', 'r', 'R', '!','~', 'c', 'b', 'n', 'B'));
-    public static final Set<Character> BRANCHES = new HashSet<Character>(Arrays.asList('⌞', '⌜', '⌟', '⌝'));
-
     public static final Long TRUE = Long.valueOf(1);
     public static final Long FALSE = Long.valueOf(0);
+
+    private static final int OP_NOP = 0;
+    private static final int OP_SLASH = 1;
+    private static final int OP_BACKSLASH = 2;
+    private static final int OP_MIRROR_RIGHT = 3;
+    private static final int OP_MIRROR_LEFT = 4;
+    private static final int OP_MIRROR_UP = 5;
+    private static final int OP_MIRROR_DOWN = 6;
+    private static final int OP_BRANCH_UP_RIGHT = 7;
+    private static final int OP_BRANCH_DOWN_RIGHT = 8;
+    private static final int OP_BRANCH_UP_LEFT = 9;
+    private static final int OP_BRANCH_DOWN_LEFT = 10;
+    private static final int OP_ADD = 11;
+    private static final int OP_SUB = 12;
+    private static final int OP_MUL = 13;
+    private static final int OP_DIV = 14;
+    private static final int OP_POW = 15;
+    private static final int OP_AND = 16;
+    private static final int OP_OR = 17;
+    private static final int OP_MOD = 18;
+    private static final int OP_GT = 19;
+    private static final int OP_LT = 20;
+    private static final int OP_EQ = 21;
+    private static final int OP_DEC = 22;
+    private static final int OP_INC = 23;
+    private static final int OP_REPL = 24;
+    private static final int OP_STACK_REPL = 25;
+    private static final int OP_NOT = 26;
+    private static final int OP_BITNOT = 27;
+    private static final int OP_COUNT = 28;
+    private static final int OP_TO_STR = 29;
+    private static final int OP_TO_NUM = 30;
+    private static final int OP_STACK_TO_STR = 31;
+    private static final int OP_STRING = 32;
+    private static final int OP_RAW = 33;
+    private static final int OP_NUMBER = 34;
+    private static final int OP_LASER = 35;
+    private static final int OP_POP = 36;
+    private static final int OP_STACK_POP = 37;
+    private static final int OP_OUTPUT = 38;
+    private static final int OP_STACK_OUTPUT = 39;
+    private static final int OP_UP = 40;
+    private static final int OP_DOWN = 41;
+    private static final int OP_ROT_UP = 42;
+    private static final int OP_ROT_DOWN = 43;
+    private static final int OP_SWAP_UP = 44;
+    private static final int OP_SWAP_DOWN = 45;
+    private static final int OP_INPUT = 46;
+    private static final int OP_INPUT_STACK = 47;
+    private static final int OP_TERMINATE = 48;
+    private static final int OP_LITERAL = 49;
+    private static final int OP_POP_N = 50;
+    private static final int OP_CONST_BINOP = 51;
+    private static final int OP_PUSH_UP = 52;
+    private static final int OP_SPLIT = 53;
+    private static final int OP_DIGIT = 64;
+
+    // new direction after a mirror or a taken branch, indexed by [op][dir]
+    private static final int[][] TURNS = {
+        null,
+        {EAST, NORTH, WEST, SOUTH},
+        {WEST, SOUTH, EAST, NORTH},
+        {EAST, EAST, EAST, WEST},
+        {WEST, EAST, WEST, WEST},
+        {NORTH, NORTH, SOUTH, NORTH},
+        {NORTH, SOUTH, SOUTH, SOUTH},
+        {EAST, NORTH, EAST, NORTH},
+        {EAST, SOUTH, EAST, SOUTH},
+        {WEST, NORTH, WEST, NORTH},
+        {WEST, SOUTH, WEST, SOUTH}
+    };
+    private static final int HOT_THRESHOLD = 64;
+    private static final int MAX_TRACE_LENGTH = 1024;
+    private static final int MAX_TRACED_CELLS = 1 << 22;
+    private static final int MAX_POW_BITS = 1 << 26;
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+
+    private static final byte[] CATEGORY = new byte[128];
+
+    static {
+        for (int op = 0; op < CATEGORY.length; op++)
+            CATEGORY[op] = (byte)category(op);
+    }
+
+    private static final long CHECKPOINT_MAGIC = 0x4C5352434B505431L;
+
+    private static final int[] DROW = {-1, 0, 1, 0};
+    private static final int[] DCOL = {0, 1, 0, -1};
     
+    private final Program program;
     private final int rows;
     private final int cols;
-    private final char[][] program;
+    private final LaserGrid grid;
+    private final Trace[] traces;
+    private final int[] cellIds;
 
     private boolean verbose;
+    private final LaserOutput out;
     
     private int pRow;
     private int pCol;
     private int dir;
     
-    private ArrayList<LinkedList<Object>> memory;
+    private LaserMemory memory;
     private int addr;
 
-    private LinkedList<Object> input;
+    private LaserInput input;
+    private boolean implicit;
     
     private String str;
     private String num;
     
     private int mode;
 
+    private long steps;
+
+    private boolean detectLoops;
+    private LoopState loopState;
+    private long loopPower = 1;
+    private long loopLength;
+
+    private LaserProfile profile;
+    private LaserTrace recorder;
+
+    private String checkpointFile;
+    private long checkpointEvery;
+    private long checkpointAt = Long.MAX_VALUE;
+    private volatile boolean checkpointRequested;
+
+    private LaserLimits limits = LaserLimits.NONE;
+    private LaserLimits.Budget budget;
+    private long deadline;
+    private boolean timed;
+
+    private LaserMetrics metrics;
+    private long[] counts;
+
+    // Runs of at least this many numbers are reduced by L on a fork-join pool.
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    // Multi-beam mode; without it Y is a no-op.
+    private LaserBeams beams;
+    private LaserBeams.Beam beam;
+    private volatile boolean cancelled;
+
+    // The step count at which the loops next call poll() for checkpoints, limits and metrics.
+    private volatile long pollAt = Long.MAX_VALUE;
+
     public static void main(String[] args) throws IOException {
         run(args);
     }
@@ -48,80 +175,208 @@ public class Laser {
             System.err.println("Usage: Laser <program.lsr> <-v, --verbose> ");
             System.exit(1);
         }
+        if (args[0].equals("-batch")) {
+            LaserBatch.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args[0].equals("-daemon")) {
+            LaserDaemon.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args[0].indexOf(".lsr") == -1) {
             System.err.println("FileError: Laser program files must end in .lsr");
             System.exit(1);
         }
-        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
-        ArrayList<String> lines = new ArrayList<String>();
-        
-        String line = null;
-        int maxLen = 0;
-        int rows = 0;
         boolean vb = false;
-
-        boolean implicit = true;
+        boolean loops = false;
+        boolean prof = false;
+        boolean stats = false;
+        int traceSteps = 0;
+        String traceFile = null;
+        LaserInput stream = null;
+        String checkpointFile = null;
+        long checkpointSteps = 0;
+        String resumeFile = null;
+        LaserLimits limits = LaserLimits.NONE;
+        int parallel = DEFAULT_PARALLEL_THRESHOLD;
+        int maxBeams = 0;
+        int flush = LaserOutput.FLUSH_ON_SIZE;
 
         LinkedList<Object> input = new LinkedList<Object>();
         for (int i = 1; i < args.length; i++) {
             if (args[i].equals("-v") || args[i].equals("-verbose")) {
                 vb = true;
-            } else if (args[i].charAt(0) == '"') {
-                input.push(args[i].substring(1, args[i].length() - 1));
-            } else if (args[i].matches("[0-9]+")) {
-                input.push(Long.parseLong(args[i]));
+            } else if (args[i].equals("-detect-loops")) {
+                loops = true;
+            } else if (args[i].equals("-profile")) {
+                prof = true;
+            } else if (args[i].equals("-metrics")) {
+                stats = true;
+            } else if (args[i].equals("-trace") && i + 1 < args.length) {
+                traceSteps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-tracefile") && i + 1 < args.length) {
+                traceFile = args[++i];
+            } else if (args[i].equals("-stdin")) {
+                stream = LaserInput.read(System.in);
+            } else if (args[i].equals("-input") && i + 1 < args.length) {
+                stream = LaserInput.read(new FileInputStream(args[++i]));
+            } else if (args[i].equals("-checkpoint") && i + 1 < args.length) {
+                checkpointFile = args[++i];
+            } else if (args[i].equals("-checkpoint-steps") && i + 1 < args.length) {
+                checkpointSteps = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-resume") && i + 1 < args.length) {
+                resumeFile = args[++i];
+            } else if (LaserLimits.isFlag(args[i]) && i + 1 < args.length) {
+                limits = LaserLimits.parse(limits, args[i], args[++i]);
+            } else if (args[i].equals("-beams")) {
+                maxBeams = Math.max(maxBeams, LaserBeams.DEFAULT_MAX_BEAMS);
+            } else if (args[i].equals("-max-beams") && i + 1 < args.length) {
+                maxBeams = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-parallel-threshold") && i + 1 < args.length) {
+                parallel = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-flush=exit")) {
+                flush = LaserOutput.FLUSH_ON_EXIT;
+            } else if (args[i].equals("-flush=line")) {
+                flush = LaserOutput.FLUSH_ON_NEWLINE;
+            } else if (args[i].equals("-flush=size")) {
+                flush = LaserOutput.FLUSH_ON_SIZE;
             } else {
-                input.push(args[i]);
+                input.push(parseInput(args[i]));
             }
         }
-        
-        while ((line = in.readLine()) != null) {
-            rows++;
-            maxLen = Math.max(maxLen, line.length());
-            if (line.contains("i") || line.contains("I"))
-                implicit = false;
-            lines.add(line);
+
+        if (stream != null && !input.isEmpty()) {
+            System.err.println("InputError: arguments cannot be combined with -stdin or -input");
+            System.exit(1);
         }
-        
-        char[][] prog = new char[rows][maxLen];
-        for (int i = 0; i < lines.size(); i++) {
-            char[] cs = lines.get(i).toCharArray();
-            for (int j = 0; j < cs.length; j++) {
-                prog[i][j] = cs[j];
+        if (maxBeams > 0 && (checkpointFile != null || resumeFile != null)) {
+            System.err.println("BeamError: -beams cannot be combined with -checkpoint or -resume");
+            System.exit(1);
+        }
+
+        Program prog = Program.load(args[0]);
+        if (vb)
+            flush = LaserOutput.FLUSH_ON_NEWLINE;
+        Laser laser = new Laser(prog, stream != null ? stream : LaserInput.of(input), vb, !prog.readsInput(), LaserOutput.stdout(flush));
+        laser.setDetectLoops(loops);
+        laser.setProfiling(prof);
+        laser.setLimits(limits);
+        laser.setMetrics(stats);
+        laser.setParallelThreshold(parallel);
+        if (maxBeams > 0)
+            laser.setBeams(maxBeams);
+        if (traceFile != null)
+            laser.setTrace(LaserTrace.map(traceFile, traceSteps > 0 ? traceSteps : 1 << 20));
+        else if (traceSteps > 0)
+            laser.setTrace(new LaserTrace(traceSteps));
+        if (resumeFile != null) {
+            try {
+                laser.resume(resumeFile);
+            } catch (LaserException le) {
+                System.err.println(le.getMessage());
+                System.exit(1);
             }
         }
-        new Laser(prog, rows, maxLen, input, vb, implicit).run();
+        if (checkpointFile != null) {
+            laser.setCheckpoint(checkpointFile, checkpointSteps);
+            onSignal("USR2", laser::requestCheckpoint);
+        }
+        boolean ok = false;
+        try {
+            laser.run();
+            ok = true;
+        } catch (LaserException le) {
+            System.err.println(le.getMessage());
+        } finally {
+            if (prof)
+                laser.profile().report(System.err);
+            if (stats)
+                LaserMetrics.report(System.err);
+            if (traceFile != null)
+                laser.trace().finish();
+            else if (traceSteps > 0)
+                laser.trace().dump(System.err, traceSteps);
+        }
+        if (!ok)
+            System.exit(1);
     }
-    
+
+    // Installs a handler through sun.misc.Signal where the JVM has it; elsewhere
+    // the signal is left alone.
+    private static void onSignal(String name, final Runnable action) {
+        try {
+            Class<?> signal = Class.forName("sun.misc.Signal");
+            Class<?> handler = Class.forName("sun.misc.SignalHandler");
+            Object proxy = Proxy.newProxyInstance(handler.getClassLoader(), new Class<?>[] {handler}, new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] a) throws Throwable {
+                    if (m.getDeclaringClass() == Object.class)
+                        return m.invoke(this, a);
+                    action.run();
+                    return null;
+                }
+            });
+            signal.getMethod("handle", signal, handler).invoke(null, signal.getConstructor(String.class).newInstance(name), proxy);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            // checkpoints are still taken every N steps
+        }
+    }
+
+    public static Object parseInput(String arg) {
+        if (arg.charAt(0) == '"')
+            return arg.substring(1, arg.length() - 1);
+        if (arg.matches("[0-9]+"))
+            return parseNumber(arg);
+        return arg;
+    }
+
+    static Object parseNumber(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            return new BigInteger(s);
+        }
+    }
+
     public Laser(char[][] p, int r, int c, LinkedList<Object> inp, boolean v, boolean imp) {
-        this.program = p;
-        this.rows = r;
-        this.cols = c;
+        this(p, r, c, inp, v, imp, LaserOutput.stdout(LaserOutput.FLUSH_ON_SIZE));
+    }
+
+    public Laser(char[][] p, int r, int c, LinkedList<Object> inp, boolean v, boolean imp, LaserOutput o) {
+        this(new Program(p, r, c), inp, v, imp, o);
+    }
+
+    public Laser(Program prog, LinkedList<Object> inp, boolean v, boolean imp, LaserOutput o) {
+        this(prog, LaserInput.of(inp), v, imp, o);
+    }
+
+    public Laser(Program prog, LaserInput inp, boolean v, boolean imp, LaserOutput o) {
+        this.program = prog;
+        this.rows = prog.rows;
+        this.cols = prog.cols;
+        this.grid = prog.grid;
+        this.traces = v ? null : prog.traces;
+        this.cellIds = prog.cellIds;
 
         this.verbose = v;
+        this.out = o;
         
         this.pRow = 0;
         this.pCol = 0;
         this.dir = EAST;
         this.mode = INSTRUCTION_MODE;
         
-        this.memory = new ArrayList<LinkedList<Object>>();
-        memory.add(new LinkedList<Object>());
+        this.memory = new LaserMemory();
+        memory.add(new LaserStack());
         this.addr = 0;
 
         this.input = inp;
+        this.implicit = imp;
         
         this.str = "";
         this.num = "";
-
-        if (imp) {
-            while (!input.isEmpty()) {
-                memory.get(addr).push(input.pop());
-            }
-        }
     }
 
-    private long fastPow(long base, long power) {
+    private static long fastPow(long base, long power) {
         long res = 1;
         long sq = base;
         while(power > 0){
@@ -134,190 +389,855 @@ public class Laser {
         return res;
     }
 
-    private long flipBits(long n) {
+    private static long flipBits(long n) {
         if (n == 0)
             return 1;
-        long k = (long)(Math.floor(Math.log(n)/Math.log(2))+1);
-        long mask = (1 << k) - 1;
+        if (n < 0)
+            return n;
+        int k = 64 - Long.numberOfLeadingZeros(n);
+        long mask = (1L << k) - 1;
         return n ^ mask;
     }
+
+    private static BigInteger flipBits(BigInteger n) {
+        if (n.signum() < 0)
+            return n;
+        BigInteger mask = BigInteger.ONE.shiftLeft(n.bitLength()).subtract(BigInteger.ONE);
+        return n.xor(mask);
+    }
+
+    // Numbers are longs until a result does not fit, then BigIntegers until it
+    // fits again. Casting a string here fails just like the old (Long) casts did.
+    private static BigInteger number(Object o) {
+        if (o instanceof BigInteger)
+            return (BigInteger)o;
+        return BigInteger.valueOf((Long)o);
+    }
+
+    private static BigInteger pow(BigInteger base, BigInteger power) {
+        if (power.signum() <= 0)
+            return BigInteger.ONE;
+        if (base.signum() == 0 || base.equals(BigInteger.ONE))
+            return base;
+        if (base.equals(BigInteger.ONE.negate()))
+            return power.testBit(0) ? base : BigInteger.ONE;
+        if (power.bitLength() > 31 || (long)base.bitLength() * power.intValue() > MAX_POW_BITS)
+            throw new LaserException("OverflowError", "result of * is too large");
+        return base.pow(power.intValue());
+    }
     
-    private void run() {
+    static int opcode(char ch) {
+        switch (ch) {
+            case '/': return OP_SLASH;
+            case '\\': return OP_BACKSLASH;
+            case '>': return OP_MIRROR_RIGHT;
+            case '<': return OP_MIRROR_LEFT;
+            case '^': return OP_MIRROR_UP;
+            case 'v': return OP_MIRROR_DOWN;
+            case '⌞': return OP_BRANCH_UP_RIGHT;
+            case '⌜': return OP_BRANCH_DOWN_RIGHT;
+            case '⌟': return OP_BRANCH_UP_LEFT;
+            case '⌝': return OP_BRANCH_DOWN_LEFT;
+            case '+': return OP_ADD;
+            case '-': return OP_SUB;
+            case '×': return OP_MUL;
+            case '÷': return OP_DIV;
+            case '*': return OP_POW;
+            case '&': return OP_AND;
+            case '|': return OP_OR;
+            case '%': return OP_MOD;
+            case 'g': return OP_GT;
+            case 'l': return OP_LT;
+            case '=': return OP_EQ;
+            case '(': return OP_DEC;
+            case ')': return OP_INC;
+            case 'r': return OP_REPL;
+            case 'R': return OP_STACK_REPL;
+            case '!': return OP_NOT;
+            case '~': return OP_BITNOT;
+            case 'c': return OP_COUNT;
+            case 'b': return OP_TO_STR;
+            case 'n': return OP_TO_NUM;
+            case 'B': return OP_STACK_TO_STR;
+            case '"': return OP_STRING;
+            case '`': return OP_RAW;
+            case '\'': return OP_NUMBER;
+            case 'L': return OP_LASER;
+            case 'p': return OP_POP;
+            case 'P': return OP_STACK_POP;
+            case 'o': return OP_OUTPUT;
+            case 'O': return OP_STACK_OUTPUT;
+            case 'U': return OP_UP;
+            case 'D': return OP_DOWN;
+            case 'u': return OP_ROT_UP;
+            case 'd': return OP_ROT_DOWN;
+            case 's': return OP_SWAP_UP;
+            case 'w': return OP_SWAP_DOWN;
+            case 'i': return OP_INPUT;
+            case 'I': return OP_INPUT_STACK;
+            case '#': return OP_TERMINATE;
+            case 'Y': return OP_SPLIT;
+        }
+        if (Character.isDigit(ch))
+            return OP_DIGIT + Character.digit(ch, 10);
+        return OP_NOP;
+    }
+
+    private static boolean isMirror(int op) {
+        return op >= OP_SLASH && op <= OP_MIRROR_DOWN;
+    }
+
+    private static boolean isBinOp(int op) {
+        return op >= OP_ADD && op <= OP_EQ;
+    }
+
+    private static boolean isUnaryOp(int op) {
+        return op >= OP_DEC && op <= OP_STACK_TO_STR;
+    }
+
+    private static int category(int op) {
+        if (isMirror(op))
+            return LaserMetrics.MIRROR;
+        if (op >= OP_BRANCH_UP_RIGHT && op <= OP_BRANCH_DOWN_LEFT)
+            return LaserMetrics.BRANCH;
+        if (isBinOp(op))
+            return LaserMetrics.BIN_OP;
+        if (isUnaryOp(op))
+            return LaserMetrics.UNARY_OP;
+        switch (op) {
+            case OP_LASER:
+                return LaserMetrics.LASER;
+            case OP_OUTPUT:
+            case OP_STACK_OUTPUT:
+            case OP_INPUT:
+            case OP_INPUT_STACK:
+                return LaserMetrics.IO;
+            case OP_POP:
+            case OP_STACK_POP:
+            case OP_UP:
+            case OP_DOWN:
+            case OP_ROT_UP:
+            case OP_ROT_DOWN:
+            case OP_SWAP_UP:
+            case OP_SWAP_DOWN:
+                return LaserMetrics.STACK;
+            case OP_STRING:
+            case OP_RAW:
+            case OP_NUMBER:
+                return LaserMetrics.LITERAL;
+        }
+        return op >= OP_DIGIT && op < OP_DIGIT + 10 ? LaserMetrics.LITERAL : LaserMetrics.OTHER;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public void setDetectLoops(boolean on) {
+        detectLoops = on;
+        loopState = null;
+        loopPower = 1;
+        loopLength = 0;
+        for (LaserStack stack : memory)
+            stack.setHashing(on);
+    }
+
+    public void setProfiling(boolean on) {
+        profile = on ? new LaserProfile(grid) : null;
+    }
+
+    public LaserProfile profile() {
+        return profile;
+    }
+
+    public void setTrace(LaserTrace t) {
+        recorder = t;
+    }
+
+    public LaserTrace trace() {
+        return recorder;
+    }
+
+    // Saves the state to file every n steps, and whenever requestCheckpoint is
+    // called; n = 0 saves on request only.
+    public void setCheckpoint(String file, long n) {
+        checkpointFile = file;
+        checkpointEvery = n;
+        checkpointAt = n > 0 ? steps + n : Long.MAX_VALUE;
+        schedule();
+    }
+
+    // Safe to call from any thread: the checkpoint is taken before the next step.
+    public void requestCheckpoint() {
+        if (checkpointFile != null) {
+            checkpointRequested = true;
+            pollAt = 0;
+        }
+    }
+
+    public void setLimits(LaserLimits l) {
+        limits = l;
+        if (budget != null) {
+            for (LaserStack stack : memory)
+                stack.setBudget(null);
+        }
+        budget = l.cells() < Long.MAX_VALUE || l.valueBytes() < Long.MAX_VALUE ? new LaserLimits.Budget(l) : null;
+        if (budget != null) {
+            for (LaserStack stack : memory)
+                stack.setBudget(budget);
+        }
+        out.setLimit(l.outputBytes());
+        schedule();
+    }
+
+    public LaserLimits limits() {
+        return limits;
+    }
+
+    public void setMetrics(boolean on) {
+        metrics = on ? new LaserMetrics() : null;
+        counts = on ? metrics.counts : null;
+        schedule();
+    }
+
+    public LaserMetrics metrics() {
+        return metrics;
+    }
+
+    // Integer.MAX_VALUE keeps every reduction on the running thread.
+    public void setParallelThreshold(int n) {
+        parallelThreshold = Math.max(2, n);
+    }
+
+    // Turns on multi-beam mode, in which at most max beams are started in all.
+    public void setBeams(int max) {
+        beams = new LaserBeams(max);
+        beam = beams.root();
+    }
+
+    void cancel() {
+        cancelled = true;
+        pollAt = 0;
+    }
+
+    // Starts a beam on the cell clockwise of this one, with copies of every stack
+    // and of the unread arguments.
+    private void split() {
+        LaserBeams.Beam b = beams.newBeam();
+        List<Object> left = input.remaining();
+        Laser child = new Laser(program, new LinkedList<Object>(left != null ? left : Collections.emptyList()),
+                verbose, false, new LaserOutput(b.bytes, LaserOutput.FLUSH_ON_SIZE));
+        LaserMemory mem = new LaserMemory();
+        for (LaserStack stack : memory)
+            mem.add(new LaserStack(stack));
+        child.memory = mem;
+        child.addr = addr;
+        child.pRow = pRow;
+        child.pCol = pCol;
+        child.dir = (dir + 1) & 3;
+        child.movePtr();
+        child.detectLoops = detectLoops;
+        child.parallelThreshold = parallelThreshold;
+        child.setLimits(limits);
+        child.setMetrics(metrics != null);
+        child.beams = beams;
+        child.beam = b;
+        beams.start(beam, b, child);
+    }
+
+    private void poll() {
+        if (cancelled)
+            throw new LaserException("BeamError", "stopped after another beam ended the run");
+        if (steps >= limits.steps())
+            throw LaserLimits.exceeded("step", limits.steps(), "steps");
+        if (timed && System.nanoTime() - deadline >= 0)
+            throw LaserLimits.exceeded("time", limits.millis(), "ms");
+        if (checkpointRequested || steps >= checkpointAt) {
+            checkpointRequested = false;
+            checkpoint();
+        }
+        if (metrics != null && metrics.due())
+            metrics.publish(steps, out.bytesWritten(), memory);
+        schedule();
+    }
+
+    // A checkpoint requested while this runs is still seen: either the flag is
+    // read here, or the request's own write to pollAt lands after this one.
+    private void schedule() {
+        long at = Math.min(checkpointAt, limits.steps());
+        if (timed)
+            at = Math.min(at, steps + LaserLimits.TIME_SLICE);
+        if (metrics != null)
+            at = Math.min(at, steps + LaserMetrics.SLICE);
+        pollAt = at;
+        if (checkpointRequested || cancelled)
+            pollAt = 0;
+    }
+
+    private void checkpoint() {
+        checkpointAt = checkpointEvery > 0 ? steps + checkpointEvery : Long.MAX_VALUE;
+        out.flush();
+        Path target = Paths.get(checkpointFile);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+            try {
+                save(o);
+            } finally {
+                o.close();
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            throw new LaserException("CheckpointError", "could not write " + checkpointFile + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Writes the state of the run: the program hash, the step count, the beam, the
+     * parse buffers, the input position and every stack. Output already written
+     * is not part of it.
+     */
+    public void save(DataOutputStream o) throws IOException {
+        o.writeLong(CHECKPOINT_MAGIC);
+        o.write(program.hash());
+        o.writeLong(steps);
+        o.writeInt(pRow);
+        o.writeInt(pCol);
+        o.writeInt(dir);
+        o.writeInt(mode);
+        o.writeInt(addr);
+        LaserStack.writeValue(o, str);
+        LaserStack.writeValue(o, num);
+        o.writeLong(input.consumed());
+        List<Object> rest = input.remaining();
+        o.writeBoolean(rest != null);
+        if (rest != null) {
+            o.writeInt(rest.size());
+            for (Object v : rest)
+                LaserStack.writeValue(o, v);
+        }
+        o.writeInt(memory.size());
+        for (LaserStack stack : memory)
+            stack.writeTo(o);
+    }
+
+    // Restores a state written by save. Values already read from a streamed input
+    // are skipped again.
+    public void restore(DataInputStream in) throws IOException {
+        if (in.readLong() != CHECKPOINT_MAGIC)
+            throw new LaserException("ResumeError", "not a Laser checkpoint");
+        byte[] hash = new byte[program.hash().length];
+        in.readFully(hash);
+        if (!Arrays.equals(hash, program.hash()))
+            throw new LaserException("ResumeError", "checkpoint was taken from a different program");
+        steps = in.readLong();
+        pRow = in.readInt();
+        pCol = in.readInt();
+        dir = in.readInt();
+        mode = in.readInt();
+        addr = in.readInt();
+        str = (String)LaserStack.readValue(in);
+        num = (String)LaserStack.readValue(in);
+        long consumed = in.readLong();
+        if (in.readBoolean()) {
+            LinkedList<Object> rest = new LinkedList<Object>();
+            for (int n = in.readInt(); n > 0; n--)
+                rest.add(LaserStack.readValue(in));
+            input = LaserInput.of(rest);
+        } else {
+            for (long n = input.consumed(); n < consumed && !input.isEmpty(); n++)
+                input.pop();
+        }
+        input.setConsumed(consumed);
+        LaserMemory mem = new LaserMemory();
+        for (int n = in.readInt(); n > 0; n--)
+            mem.add(LaserStack.readFrom(in));
+        memory = mem;
+        implicit = false;
+        setDetectLoops(detectLoops);
+        if (checkpointEvery > 0)
+            checkpointAt = steps + checkpointEvery;
+        setLimits(limits);
+    }
+
+    public void resume(String file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                restore(in);
+            } finally {
+                in.close();
+            }
+        } catch (EOFException eofe) {
+            throw new LaserException("ResumeError", file + " is truncated");
+        } catch (IOException ioe) {
+            throw new LaserException("ResumeError", "could not read " + file + ": " + ioe.getMessage());
+        }
+    }
+
+    public void run() {
+        if (implicit) {
+            implicit = false;
+            while (!input.isEmpty()) {
+                memory.get(addr).push(input.pop());
+            }
+        }
+        timed = limits.millis() < Long.MAX_VALUE / 1000000;
+        if (timed) {
+            deadline = System.nanoTime() + limits.millis() * 1000000;
+            schedule();
+        }
+        if (profile != null)
+            profile.start();
+        boolean ok = false;
+        try {
+            if (profile != null || recorder != null)
+                instrumentedLoop();
+            else
+                loop();
+            if (beam != null && beam == beams.root())
+                beams.join(out);
+            ok = true;
+        } finally {
+            if (beam != null && beam == beams.root())
+                beams.stop();
+            out.flush();
+            if (profile != null) {
+                profile.stop();
+                profile.steps(steps);
+            }
+            if (metrics != null) {
+                metrics.publish(steps, out.bytesWritten(), memory);
+                metrics.finish(ok);
+            }
+        }
+    }
+
+    // The interpreter loop with every step profiled or recorded. Traces are
+    // skipped so that each cell the beam crosses is seen.
+    private void instrumentedLoop() {
         boolean cont;
         do {
+            if (steps >= pollAt)
+                poll();
+            if (recorder != null)
+                recorder.record(steps + 1, pRow, pCol, grid.charAt(pRow, pCol), dir, mode, addr,
+                        addr >= 0 && addr < memory.size() ? memory.get(addr) : null);
+            if (profile != null) {
+                profile.hit(pRow, pCol, dir);
+                if (mode == INSTRUCTION_MODE)
+                    profile.instruction(grid.op(pRow, pCol));
+            }
             cont = step();
+            if (profile != null && addr >= 0 && addr < memory.size())
+                profile.depth(addr, memory.get(addr).size());
         } while (cont);
     }
+
+    private void loop() {
+        if (traces == null) {
+            boolean cont;
+            do {
+                if (steps >= pollAt)
+                    poll();
+                cont = step();
+            } while (cont);
+            return;
+        }
+        do {
+            if (steps >= pollAt)
+                poll();
+            int id = cellIds[pRow * cols + pCol];
+            if (mode == INSTRUCTION_MODE && id >= 0) {
+                int key = (id << 2) | dir;
+                Trace t = traces[key];
+                if (t == null)
+                    t = program.warm(key, pRow, pCol, dir);
+                if (t != null && t.steps < limits.steps() - steps) {
+                    if (detectLoops)
+                        checkLoop();
+                    runTrace(t);
+                }
+            }
+        } while (step());
+    }
+
+    private void runTrace(Trace t) {
+        int[] ops = t.ops;
+        for (int i = 0; i < ops.length; i++) {
+            int op = ops[i];
+            switch (op) {
+                case OP_LASER:
+                    laser(ops[++i]);
+                    break;
+                case OP_LITERAL:
+                    memory.get(addr).push(t.values[ops[++i]]);
+                    break;
+                case OP_CONST_BINOP:
+                    constBinOp(ops[i + 1], (Long)t.values[ops[i + 2]]);
+                    i += 2;
+                    break;
+                case OP_POP_N:
+                    for (int n = ops[++i]; n > 0; n--)
+                        memory.get(addr).pop();
+                    break;
+                case OP_PUSH_UP:
+                    addr++;
+                    if (addr >= memory.size())
+                        memory.add(newStack());
+                    memory.get(addr).push(t.values[ops[++i]]);
+                    addr--;
+                    break;
+                default:
+                    exec(op);
+            }
+        }
+        steps += t.steps;
+        if (counts != null)
+            t.count(counts);
+        pRow = t.row;
+        pCol = t.col;
+        dir = t.dir;
+    }
+
+    private static int wrap(int i, int n) {
+        if (i < 0)
+            return n - 1;
+        if (i >= n)
+            return 0;
+        return i;
+    }
     
     private boolean step() {
-        char curr = program[pRow][pCol];
+        steps++;
+        int op = grid.op(pRow, pCol);
         if (verbose)
-            System.out.println("curr: " +curr + "\t" + "addr: " + addr + "\t" + "stack: " + memory.get(addr));
+            out.println("curr: " + grid.charAt(pRow, pCol) + "\t" + "addr: " + addr + "\t" + "stack: " + memory.get(addr));
         switch (mode) {
             case INSTRUCTION_MODE:
-                if (MIRRORS.contains(curr)) {
-                    parseMirror(curr);
-                } else if (curr == '"')  {
-                    mode = STRING_MODE;
-                    str = "";
-                } else if (curr == '`') {
-                    mode = RAW_MODE;
-                    str = "";
-                } else if (curr == '\'') {
-                    mode = NUMBER_MODE;
-                    num = "";
-                } else if (BIN_OPS.contains(curr)) {
-                    binOp(curr);
-                } else if (UNARY_OPS.contains(curr)) {
-                    unaryOp(curr);
-                } else if (BRANCHES.contains(curr)) {
-                    branch(curr);
-                } else if (Character.isDigit(curr)) {
-                    memory.get(addr).push(Long.parseLong(""+curr));
-                } else if (curr == 'L') {
-                    laser();
-                } else if (curr == 'p') {
-                    memory.get(addr).pop();
-                } else if (curr == 'P') {
-                    memory.remove(addr);
-                    if (addr >= memory.size())
-                        addr--;
-                } else if (curr == 'o') {
-                    System.out.println(memory.get(addr).pop());
-                } else if (curr == 'O') {
-                    if (!memory.get(addr).isEmpty()) {
-                        String output = "";
-                        while (!memory.get(addr).isEmpty()) {
-                            output += memory.get(addr).pop() + " ";
-                        }
-                        output = output.substring(0, output.length() - 1);
-                        System.out.println(output);
-                    }
-                } else if (curr == 'U') {
-                    addr++;
-                    if (addr >= memory.size())
-                        memory.add(new LinkedList<Object>());
-                } else if (curr == 'D') {
-                    addr--;
-                    if (addr < 0) {
-                        System.err.println("IndexError: tried to access stack at position -1");
-                        System.exit(1);
-                    }
-                } else if (curr == 'u') {
-                    Object bottom = memory.get(addr).removeLast();
-                    memory.get(addr).push(bottom);
-                } else if (curr == 'd') {
-                    Object top = memory.get(addr).pop();
-                    memory.get(addr).add(top);
-                } else if (curr == 's') {
-                    Object top = memory.get(addr).pop();
-                    addr++;
-                    if (addr >= memory.size())
-                        memory.add(new LinkedList<Object>());
-                    memory.get(addr).push(top);
-                    addr--;
-                } else if (curr == 'w') {
-                    Object top = memory.get(addr).pop();
-                    addr--;
-                    if (addr < 0) {
-                        System.err.println("IndexError: tried to access stack at position -1");
-                        System.exit(1);
-                    }
-                    memory.get(addr).push(top);
-                    addr++;
-                } else if (curr == 'i') {
-                    try {
-                        memory.get(addr).push(input.pop());
-                    } catch (NoSuchElementException nsee) {
-                        System.err.println("InputError: tried to pop input off empty stack");
-                        System.exit(1);
-                    }
-                } else if (curr == 'I') {
-                    while (!input.isEmpty()) {
-                        memory.get(addr).push(input.pop());
-                    }
-                } else if (curr == '#') {
-                    if (memory.get(addr).isEmpty())
-                        return false;
-                    String output = "";
-                    while (!memory.get(addr).isEmpty()) {
-                        output += memory.get(addr).pop() + " ";
-                    }
-                    output = output.substring(0, output.length() - 1);
-                    System.out.println(output);
+                if (counts != null)
+                    counts[CATEGORY[op]]++;
+                if (!exec(op))
                     return false;
-                } 
                 break;
             case STRING_MODE:
             case RAW_MODE:
-                if (curr == '"' && mode == STRING_MODE
-                        || curr == '`' && mode == RAW_MODE) {
+                if (counts != null)
+                    counts[LaserMetrics.LITERAL_CELLS]++;
+                if (op == OP_STRING && mode == STRING_MODE
+                        || op == OP_RAW && mode == RAW_MODE) {
                     memory.get(addr).push(str);
                     mode = INSTRUCTION_MODE;
-                } else if (MIRRORS.contains(curr) && mode == STRING_MODE) {
-                    parseMirror(curr);
+                } else if (isMirror(op) && mode == STRING_MODE) {
+                    dir = TURNS[op][dir];
                 } else {
-                    str += curr;
+                    str += grid.charAt(pRow, pCol);
                 }
                 break;
             case NUMBER_MODE:
-                if (curr == '\'') {
-                    memory.get(addr).push(Long.parseLong(num));
+                if (counts != null)
+                    counts[LaserMetrics.LITERAL_CELLS]++;
+                if (op == OP_NUMBER) {
+                    memory.get(addr).push(parseNumber(num));
                     mode = INSTRUCTION_MODE;
-                } else if (MIRRORS.contains(curr)) {
-                    parseMirror(curr);
+                } else if (isMirror(op)) {
+                    dir = TURNS[op][dir];
                 } else {
-                    num += curr;
+                    num += grid.charAt(pRow, pCol);
                 }
                 break;
             default:
-                System.err.println("InternalError: unknown parse mode");
-                System.exit(1);
+                throw new LaserException("InternalError", "unknown parse mode");
         }
         movePtr();
         return true;
     }
 
-    private void laser() {
-        movePtr();
-        char op = program[pRow][pCol];
-        Set<Character> unusable = new HashSet<Character>(Arrays.asList('r', 'R'));
-        if (BIN_OPS.contains(op) && !(op == '-')) {
+    private boolean exec(int op) {
+        switch (op) {
+            case OP_NOP:
+                break;
+            case OP_SLASH:
+            case OP_BACKSLASH:
+            case OP_MIRROR_RIGHT:
+            case OP_MIRROR_LEFT:
+            case OP_MIRROR_UP:
+            case OP_MIRROR_DOWN:
+                if (detectLoops)
+                    checkLoop();
+                dir = TURNS[op][dir];
+                break;
+            case OP_BRANCH_UP_RIGHT:
+            case OP_BRANCH_DOWN_RIGHT:
+            case OP_BRANCH_UP_LEFT:
+            case OP_BRANCH_DOWN_LEFT:
+                if (detectLoops)
+                    checkLoop();
+                branch(op);
+                break;
+            case OP_STRING:
+            case OP_RAW:
+            case OP_NUMBER:
+                Literal lit = verbose || profile != null || recorder != null ? null : program.literal(pRow, pCol, dir);
+                // near the step limit the literal is stepped through so the limit is exact
+                if (lit != null && lit.cells > limits.steps() - steps)
+                    lit = null;
+                if (lit != null) {
+                    steps += lit.cells;
+                    if (counts != null)
+                        counts[LaserMetrics.LITERAL_CELLS] += lit.cells;
+                    memory.get(addr).push(lit.value);
+                    pRow = lit.row;
+                    pCol = lit.col;
+                    dir = lit.dir;
+                } else if (op == OP_NUMBER) {
+                    mode = NUMBER_MODE;
+                    num = "";
+                } else {
+                    mode = op == OP_STRING ? STRING_MODE : RAW_MODE;
+                    str = "";
+                }
+                break;
+            case OP_ADD:
+            case OP_SUB:
+            case OP_MUL:
+            case OP_DIV:
+            case OP_POW:
+            case OP_AND:
+            case OP_OR:
+            case OP_MOD:
+            case OP_GT:
+            case OP_LT:
+            case OP_EQ:
+                binOp(op);
+                break;
+            case OP_DEC:
+            case OP_INC:
+            case OP_REPL:
+            case OP_STACK_REPL:
+            case OP_NOT:
+            case OP_BITNOT:
+            case OP_COUNT:
+            case OP_TO_STR:
+            case OP_TO_NUM:
+            case OP_STACK_TO_STR:
+                unaryOp(op);
+                break;
+            case OP_LASER:
+                movePtr();
+                laser(grid.op(pRow, pCol));
+                break;
+            case OP_POP:
+                memory.get(addr).pop();
+                break;
+            case OP_STACK_POP:
+                LaserStack gone = memory.remove(addr);
+                if (budget != null)
+                    gone.setBudget(null);
+                if (addr >= memory.size())
+                    addr--;
+                break;
+            case OP_OUTPUT:
+                output(memory.get(addr));
+                out.println();
+                break;
+            case OP_STACK_OUTPUT:
+                if (!memory.get(addr).isEmpty())
+                    outputStack(memory.get(addr));
+                break;
+            case OP_UP:
+                addr++;
+                if (addr >= memory.size())
+                    memory.add(newStack());
+                break;
+            case OP_DOWN:
+                addr--;
+                if (addr < 0) {
+                    throw new LaserException("IndexError", "tried to access stack at position -1");
+                }
+                break;
+            case OP_ROT_UP:
+                Object bottom = memory.get(addr).removeLast();
+                memory.get(addr).push(bottom);
+                break;
+            case OP_ROT_DOWN:
+                Object top = memory.get(addr).pop();
+                memory.get(addr).add(top);
+                break;
+            case OP_SWAP_UP:
+                top = memory.get(addr).pop();
+                addr++;
+                if (addr >= memory.size())
+                    memory.add(newStack());
+                memory.get(addr).push(top);
+                addr--;
+                break;
+            case OP_SWAP_DOWN:
+                top = memory.get(addr).pop();
+                addr--;
+                if (addr < 0) {
+                    throw new LaserException("IndexError", "tried to access stack at position -1");
+                }
+                memory.get(addr).push(top);
+                addr++;
+                break;
+            case OP_INPUT:
+                try {
+                    memory.get(addr).push(input.pop());
+                } catch (NoSuchElementException nsee) {
+                    throw new LaserException("InputError", "tried to pop input off empty stack");
+                }
+                break;
+            case OP_INPUT_STACK:
+                while (!input.isEmpty()) {
+                    memory.get(addr).push(input.pop());
+                }
+                break;
+            case OP_TERMINATE:
+                if (!memory.get(addr).isEmpty())
+                    outputStack(memory.get(addr));
+                return false;
+            case OP_SPLIT:
+                if (beams != null)
+                    split();
+                break;
+            default:
+                memory.get(addr).push((long)(op - OP_DIGIT));
+        }
+        return true;
+    }
+
+    // The current stack is only looked up for the ops L applies to, so an L in
+    // front of any other cell does nothing, even when memory is empty.
+    private void laser(int op) {
+        if (isBinOp(op) && !(op == OP_SUB)) {
+            LaserStack stack = memory.get(addr);
+            // under a value limit L× multiplies one pair at a time in binOp, which
+            // checks the size of every partial product
+            boolean bulk = op == OP_ADD || op == OP_AND || op == OP_OR
+                    || (op == OP_MUL && limits.valueBytes() == Long.MAX_VALUE);
+            int n = bulk ? stack.numberRun() : 0;
+            if (n >= parallelThreshold) {
+                Object r = stack.fold(op == OP_ADD ? LaserStack.SUM : op == OP_MUL ? LaserStack.PRODUCT
+                        : op == OP_AND ? LaserStack.AND : LaserStack.OR, n);
+                stack.drop(n);
+                stack.push(r);
+            } else if (n > 1) {
+                Object r;
+                if (op == OP_ADD)
+                    r = stack.sum(n);
+                else if (op == OP_MUL)
+                    r = stack.product(n);
+                else if (op == OP_AND)
+                    r = stack.and(n);
+                else
+                    r = stack.or(n);
+                stack.drop(n);
+                stack.push(r);
+            }
             while (memory.get(addr).size() > 1) {
                 binOp(op);
             }
-        } else if (op == '-' || op == 'o' || (UNARY_OPS.contains(op) && !unusable.contains(op))) {
-            for (int i = 0; i < memory.get(addr).size(); i++) {
+        } else if (op == OP_OUTPUT) {
+            LaserStack stack = memory.get(addr);
+            while (stack.size() > 0) {
+                output(stack);
+                out.println();
+            }
+        } else if (op == OP_DEC || op == OP_INC || op == OP_NOT || op == OP_BITNOT || op == OP_SUB) {
+            LaserStack stack = memory.get(addr);
+            int n = stack.numberRun();
+            switch (op) {
+                case OP_DEC:
+                    stack.increment(n, -1);
+                    promoteWrapped(stack, n, Long.MAX_VALUE, BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE));
+                    break;
+                case OP_INC:
+                    stack.increment(n, 1);
+                    promoteWrapped(stack, n, Long.MIN_VALUE, BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE));
+                    break;
+                case OP_NOT:
+                    stack.map(n, Laser::flipBits);
+                    break;
+                case OP_BITNOT:
+                    stack.complement(n);
+                    break;
+                case OP_SUB:
+                    stack.negate(n);
+                    promoteWrapped(stack, n, Long.MIN_VALUE, BigInteger.valueOf(Long.MIN_VALUE).negate());
+                    break;
+            }
+            // the first string fails the same way it always has
+            for (int i = n; i < memory.get(addr).size(); i++) {
+                Object v = memory.get(addr).get(i);
                 switch (op) {
-                    case '(':
-                        memory.get(addr).set(i, (Long)(memory.get(addr).get(i)) - 1);
+                    case OP_DEC:
+                        memory.get(addr).set(i, number(v).subtract(BigInteger.ONE));
                         break;
-                    case ')':
-                        memory.get(addr).set(i, (Long)(memory.get(addr).get(i)) + 1);
+                    case OP_INC:
+                        memory.get(addr).set(i, number(v).add(BigInteger.ONE));
                         break;
-                    case '!':
-                        memory.get(addr).set(i, flipBits((Long)(memory.get(addr).get(i))));
+                    case OP_NOT:
+                        if (v instanceof BigInteger)
+                            memory.get(addr).set(i, flipBits((BigInteger)v));
+                        else
+                            memory.get(addr).set(i, flipBits((Long)v));
                         break;
-                    case '~':
-                        memory.get(addr).set(i, ~(Long)(memory.get(addr).get(i)));
+                    case OP_BITNOT:
+                        memory.get(addr).set(i, number(v).not());
                         break;
-                    case '-':
-                        memory.get(addr).set(i, 0 - (Long)(memory.get(addr).get(i)));
-                        break;
-                    case 'o':
-                        while (memory.get(addr).size() > 0)
-                            System.out.println(memory.get(addr).pop());
+                    case OP_SUB:
+                        memory.get(addr).set(i, number(v).negate());
                         break;
                 }
             }
         }
     }
 
-    private void unaryOp(char curr) {
+    // After a bulk kernel, the only value that can have wrapped around is the one
+    // the overflowing element turned into; those are replaced by the exact result.
+    private static void promoteWrapped(LaserStack stack, int n, long wrapped, BigInteger exact) {
+        for (int i = 0; i < n; i++) {
+            if (stack.isNumber(i) && stack.getLong(i) == wrapped)
+                stack.set(i, exact);
+        }
+    }
+
+    private void unaryOp(int op) {
+        LaserStack stack = memory.get(addr);
+        if (!stack.isEmpty() && stack.isNumber(0)) {
+            long v = stack.getLong(0);
+            switch (op) {
+                case OP_DEC:
+                    if (v != Long.MIN_VALUE) {
+                        stack.set(0, v - 1);
+                        return;
+                    }
+                    break;
+                case OP_INC:
+                    if (v != Long.MAX_VALUE) {
+                        stack.set(0, v + 1);
+                        return;
+                    }
+                    break;
+                case OP_REPL:
+                    stack.push(v);
+                    return;
+                case OP_NOT:
+                    stack.set(0, flipBits(v));
+                    return;
+                case OP_BITNOT:
+                    stack.set(0, ~v);
+                    return;
+            }
+        }
         Object a;
-        Long la;
-        switch(curr) {
-            case '(':
+        switch(op) {
+            case OP_DEC:
                 a = memory.get(addr).pop();
                 if (a instanceof String) {
                     char[] chars = ((String)a).toCharArray();
@@ -326,10 +1246,10 @@ public class Laser {
                     }
                     memory.get(addr).push(new String(chars));
                 } else {
-                    memory.get(addr).push((Long)a - 1);
+                    memory.get(addr).push(number(a).subtract(BigInteger.ONE));
                 }
                 break;
-            case ')':
+            case OP_INC:
                 a = memory.get(addr).pop();
                 if (a instanceof String) {
                     char[] chars = ((String)a).toCharArray();
@@ -338,117 +1258,160 @@ public class Laser {
                     }
                     memory.get(addr).push(new String(chars));
                 } else {
-                    memory.get(addr).push((Long)a + 1);
+                    memory.get(addr).push(number(a).add(BigInteger.ONE));
                 }
                 break;
-            case 'r':
+            case OP_REPL:
                 a = memory.get(addr).pop();
                 Object b;
                 if (a instanceof String) {
                     b = new String((String)a);
+                } else if (a instanceof BigInteger) {
+                    b = a;
                 } else {
                     b = Long.valueOf((Long)a);
                 }
                 memory.get(addr).push(a);
                 memory.get(addr).push(b);
                 break;
-            case 'R':
-                LinkedList<Object> sack = memory.get(addr);
-                LinkedList<Object> dup = new LinkedList<Object>(sack);
+            case OP_STACK_REPL:
+                LaserStack sack = memory.get(addr);
+                LaserStack dup = new LaserStack(sack);
+                if (budget != null)
+                    dup.setBudget(budget);
                 memory.add(addr, dup);
                 break;
-            case '!':
+            case OP_NOT:
                 a = memory.get(addr).pop();
-                la = (Long)a;
-                memory.get(addr).push(flipBits(la));
+                if (a instanceof BigInteger)
+                    memory.get(addr).push(flipBits((BigInteger)a));
+                else
+                    memory.get(addr).push(flipBits((Long)a));
                 break;
-            case '~':
+            case OP_BITNOT:
                 a = memory.get(addr).pop();
-                la = (Long)a;
-                memory.get(addr).push(~la);
+                memory.get(addr).push(number(a).not());
                 break;
-            case 'c':
-            	LinkedList<Object> temp = memory.get(addr);
-            	temp.push(Long.valueOf(temp.size()));
+            case OP_COUNT:
+            	LaserStack temp = memory.get(addr);
+            	temp.push((long)temp.size());
             	break;
-            case 'b':
+            case OP_TO_STR:
                 a = memory.get(addr).pop();
-                if (!(a instanceof Long)) {
-                    System.err.println("TypeError: tried to cast non-number to string");
-                    System.exit(1);
+                if (a instanceof String) {
+                    throw new LaserException("TypeError", "tried to cast non-number to string");
                 }
-                memory.get(addr).push(String.valueOf((char)Math.toIntExact((Long)a)));
+                long code = a instanceof Long ? (Long)a : number(a).longValueExact();
+                memory.get(addr).push(String.valueOf((char)Math.toIntExact(code)));
                 break;
-            case 'B':
-                String ans = "";
-                while (!memory.get(addr).isEmpty() && memory.get(addr).peek() instanceof Long) {
-                    a = memory.get(addr).pop();
-                    ans += (char)Math.toIntExact((Long)a);
+            case OP_STACK_TO_STR:
+                StringBuilder ans = new StringBuilder(memory.get(addr).popChars());
+                // anything left that is a number is out of range and fails as it always has
+                while (!memory.get(addr).isEmpty() && (memory.get(addr).isNumber(0) || memory.get(addr).peek() instanceof BigInteger)) {
+                    ans.append((char)Math.toIntExact(memory.get(addr).isNumber(0) ? memory.get(addr).popLong() : number(memory.get(addr).pop()).longValueExact()));
                 }
-                memory.get(addr).push(ans);
+                memory.get(addr).push(ans.toString());
                 break;
-            case 'n':
+            case OP_TO_NUM:
                 a = memory.get(addr).pop();
-                if (a instanceof Long) {
-                    System.err.println("TypeError: tried to cast non-string to number");
-                    System.exit(1);
-                }
-                String sa = (String)a;
-                for (int i = sa.length() - 1; i >= 0; i--) {
-                    memory.get(addr).push(Long.valueOf((int)sa.charAt(i)));
+                if (!(a instanceof String)) {
+                    throw new LaserException("TypeError", "tried to cast non-string to number");
                 }
+                memory.get(addr).pushChars((String)a);
                 break;
          }
     }
 
-    private void binOp(char curr) {
+    private void binOp(int op) {
+        LaserStack stack = memory.get(addr);
+        if (stack.size() > 1 && stack.isNumber(0) && stack.isNumber(1)) {
+            long x = stack.getLong(0);
+            long y = stack.getLong(1);
+            exact: {
+                long r;
+                switch (op) {
+                    case OP_ADD:
+                        r = x + y;
+                        if (((x ^ r) & (y ^ r)) < 0)
+                            break exact;
+                        break;
+                    case OP_SUB:
+                        r = y - x;
+                        if (((y ^ x) & (y ^ r)) < 0)
+                            break exact;
+                        break;
+                    case OP_MUL:
+                        r = x * y;
+                        if (Math.multiplyHigh(x, y) != r >> 63)
+                            break exact;
+                        break;
+                    default:
+                        if (overflows(op, x, y))
+                            break exact;
+                        stack.popLong();
+                        stack.popLong();
+                        stack.push(numOp(op, x, y));
+                        return;
+                }
+                stack.popLong();
+                stack.popLong();
+                stack.push(r);
+                return;
+            }
+        }
         Object a, b;
-        Long la, lb;
-        switch(curr) {
-            case '+':
+        BigInteger ba, bb;
+        switch(op) {
+            case OP_ADD:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
                 if (a instanceof String || b instanceof String) {
+                    if (budget != null)
+                        budget.checkValue(2L * (a.toString().length() + b.toString().length()));
                     memory.get(addr).push(a.toString() + b.toString());
                 } else {
-                    la = (Long)a;
-                    lb = (Long)b;
-                    memory.get(addr).push(la + lb);
+                    memory.get(addr).push(number(a).add(number(b)));
                 }
                 break;
-            case '-':
+            case OP_SUB:
                 a = memory.get(addr).pop();
-                la = (Long)a;
+                ba = number(a);
                 if (memory.get(addr).size() > 0) {
                     b = memory.get(addr).pop();
-                    lb = (Long)b;
-                    memory.get(addr).push(lb - la);
+                    bb = number(b);
+                    memory.get(addr).push(bb.subtract(ba));
                 } else {
-                    memory.get(addr).push(0 - la);
+                    memory.get(addr).push(ba.negate());
                 }
                 break;
-            case '×':
+            case OP_MUL:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(la * lb);
+                ba = number(a);
+                bb = number(b);
+                if (budget != null)
+                    budget.checkValue(((long)ba.bitLength() + bb.bitLength()) / 8);
+                memory.get(addr).push(bb.multiply(ba));
                 break;
-            case '÷':
+            case OP_DIV:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(lb / la);
+                ba = number(a);
+                bb = number(b);
+                if (ba.signum() == 0)
+                    throw new ArithmeticException("/ by zero");
+                memory.get(addr).push(bb.divide(ba));
                 break;
-            case '*':
+            case OP_POW:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(fastPow(lb, la));
+                ba = number(a);
+                bb = number(b);
+                if (budget != null && ba.signum() > 0 && ba.bitLength() < 32 && bb.abs().bitLength() > 1)
+                    budget.checkValue((long)bb.bitLength() * ba.intValue() / 8);
+                memory.get(addr).push(pow(bb, ba));
                 break;
-            case 'g':
+            case OP_GT:
             	a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
                 if (a instanceof String || b instanceof String) {
@@ -458,15 +1421,13 @@ public class Laser {
                 	else
                 		memory.get(addr).push(FALSE);
                 } else {
-                	la = (Long)a;
-                	lb = (Long)b;
-                	if (lb > la)
+                	if (number(b).compareTo(number(a)) > 0)
                 		memory.get(addr).push(TRUE);
                 	else
                 		memory.get(addr).push(FALSE);
                 }
                 break;
-            case 'l':
+            case OP_LT:
             	a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
                 if (a instanceof String || b instanceof String) {
@@ -476,15 +1437,13 @@ public class Laser {
                 	else
                 		memory.get(addr).push(TRUE);
                 } else {
-                	la = (Long)a;
-                	lb = (Long)b;
-                	if (la > lb)
+                	if (number(a).compareTo(number(b)) > 0)
                 		memory.get(addr).push(TRUE);
                 	else
                 		memory.get(addr).push(FALSE);
                 }
                 break;
-            case '=':
+            case OP_EQ:
             	a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
                 if (a instanceof String || b instanceof String) {
@@ -494,188 +1453,731 @@ public class Laser {
                 	else
                 		memory.get(addr).push(FALSE);
                 } else {
-                	la = (Long)a;
-                	lb = (Long)b;
-                	if (lb.equals(la))
+                	if (number(b).equals(number(a)))
                 		memory.get(addr).push(TRUE);
                 	else
                 		memory.get(addr).push(FALSE);
                 }
                 break;
-            case '&':
+            case OP_AND:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(la & lb);
+                ba = number(a);
+                bb = number(b);
+                memory.get(addr).push(ba.and(bb));
                 break;
-            case '|':
+            case OP_OR:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(la | lb);
+                ba = number(a);
+                bb = number(b);
+                memory.get(addr).push(ba.or(bb));
                 break;
-            case '%':
+            case OP_MOD:
                 a = memory.get(addr).pop();
                 b = memory.get(addr).pop();
-                la = (Long)a;
-                lb = (Long)b;
-                memory.get(addr).push(lb % la);
+                ba = number(a);
+                bb = number(b);
+                if (ba.signum() == 0)
+                    throw new ArithmeticException("/ by zero");
+                memory.get(addr).push(bb.remainder(ba));
                 break;
         }
     }
     
+    // A constant pushed and immediately consumed by a binary op: applied to the
+    // top of the stack in place when that cannot fail or overflow.
+    private void constBinOp(int op, long c) {
+        LaserStack stack = memory.get(addr);
+        if (!stack.isEmpty() && stack.isNumber(0)) {
+            long y = stack.getLong(0);
+            if (!overflows(op, c, y) && !(c == 0 && (op == OP_DIV || op == OP_MOD))) {
+                stack.set(0, numOp(op, c, y));
+                return;
+            }
+        }
+        stack.push(c);
+        binOp(op);
+    }
+
+    private void output(LaserStack stack) {
+        if (!stack.isEmpty() && stack.isNumber(0))
+            out.print(stack.popLong());
+        else
+            out.print(stack.pop());
+    }
+
+    private void outputStack(LaserStack stack) {
+        output(stack);
+        while (!stack.isEmpty()) {
+            out.print(" ");
+            output(stack);
+        }
+        out.println();
+    }
+
+    private static long numOp(int op, long a, long b) {
+        switch (op) {
+            case OP_ADD:
+                return a + b;
+            case OP_SUB:
+                return b - a;
+            case OP_MUL:
+                return a * b;
+            case OP_DIV:
+                return b / a;
+            case OP_POW:
+                return fastPow(b, a);
+            case OP_GT:
+                return b > a ? 1 : 0;
+            case OP_LT:
+                return a > b ? 1 : 0;
+            case OP_EQ:
+                return b == a ? 1 : 0;
+            case OP_AND:
+                return a & b;
+            case OP_OR:
+                return a | b;
+            case OP_MOD:
+                return b % a;
+        }
+        throw new IllegalArgumentException("not a binary op: " + op);
+    }
+
+    // whether numOp(op, a, b) would wrap around
+    private static boolean overflows(int op, long a, long b) {
+        long r;
+        switch (op) {
+            case OP_ADD:
+                r = a + b;
+                return ((a ^ r) & (b ^ r)) < 0;
+            case OP_SUB:
+                r = b - a;
+                return ((b ^ a) & (b ^ r)) < 0;
+            case OP_MUL:
+                return Math.multiplyHigh(a, b) != (a * b) >> 63;
+            case OP_DIV:
+                return b == Long.MIN_VALUE && a == -1;
+            case OP_POW:
+                return powOverflows(b, a);
+        }
+        return false;
+    }
+
+    private static boolean powOverflows(long base, long power) {
+        if (power <= 0 || base >= -1 && base <= 1)
+            return false;
+        long res = 1;
+        long sq = base;
+        while (power > 0) {
+            if ((power & 1) == 1) {
+                if (Math.multiplyHigh(res, sq) != (res * sq) >> 63)
+                    return true;
+                res *= sq;
+            }
+            power >>= 1;
+            if (power > 0) {
+                if (Math.multiplyHigh(sq, sq) != (sq * sq) >> 63)
+                    return true;
+                sq *= sq;
+            }
+        }
+        return false;
+    }
+
     private void movePtr() {
-        switch (dir) {
-            case NORTH:
-                pRow--;
-                if (pRow < 0) {
-                    pRow = rows - 1;
-                }
-                break;
-            case EAST:
-                pCol++;
-                if (pCol >= cols) {
-                    pCol = 0;
-                }
-                break;
-            case SOUTH:
-                pRow++;
-                if (pRow >= rows) {
-                    pRow = 0;
+        pRow += DROW[dir];
+        pCol += DCOL[dir];
+        if (pRow < 0) {
+            pRow = rows - 1;
+        } else if (pRow >= rows) {
+            pRow = 0;
+        }
+        if (pCol < 0) {
+            pCol = cols - 1;
+        } else if (pCol >= cols) {
+            pCol = 0;
+        }
+    }
+
+    private void branch(int op) {
+        LaserStack stack = memory.get(addr);
+        if (!stack.isEmpty() && stack.isNumber(0)) {
+            if (stack.getLong(0) == 0)
+                dir = TURNS[op][dir];
+            return;
+        }
+        Object top = stack.peek();
+        long val = top instanceof BigInteger ? 1 : (long)top;
+        if (val == 0)
+            dir = TURNS[op][dir];
+    }
+
+    private LaserStack newStack() {
+        LaserStack stack = new LaserStack();
+        if (detectLoops)
+            stack.setHashing(true);
+        if (budget != null)
+            stack.setBudget(budget);
+        if (counts != null)
+            counts[LaserMetrics.STACKS_CREATED]++;
+        return stack;
+    }
+
+    // Brent's cycle finding over the states seen at branch, mirror and trace entry
+    // cells: the saved state moves forward at every power of two, so a loop of any
+    // length is caught within two turns of it while only one state is kept.
+    private void checkLoop() {
+        long fp = fingerprint();
+        if (loopState != null && loopState.fingerprint == fp && loopState.matches(this))
+            throw new LaserException("LoopError", "program loops forever from row " + pRow + ", column " + pCol);
+        if (loopState == null || loopLength == loopPower) {
+            if (loopState != null)
+                loopPower <<= 1;
+            loopState = new LoopState(this, fp);
+            loopLength = 0;
+        }
+        loopLength++;
+    }
+
+    private long fingerprint() {
+        long h = (((long)pRow * cols + pCol) << 2) | dir;
+        h = h * 31 + mode;
+        h = h * 31 + addr;
+        h = h * 31 + input.consumed();
+        h = h * 31 + memory.size();
+        for (int i = 0; i < memory.size(); i++) {
+            LaserStack stack = memory.get(i);
+            h = h * 0x100000001B3L + stack.contentHash() + stack.size();
+        }
+        return h;
+    }
+
+    /**
+     * A decoded Laser program. It is immutable apart from the literal and trace
+     * caches, which are filled in lazily and may be shared by any number of
+     * concurrent executions: literals live in a concurrent map, and traces are
+     * immutable objects published through a plain array, so a racing reader at
+     * worst recompiles one.
+     */
+    public static final class Program {
+        private final int rows;
+        private final int cols;
+        private final LaserGrid grid;
+        private final boolean readsInput;
+
+        private final Trace[] traces;
+        private final byte[] heat;
+        private final int[] cellIds;
+        private final ConcurrentHashMap<Long, Literal> literals;
+        private volatile byte[] hash;
+
+        public Program(char[][] p) {
+            this(p, p.length, p.length == 0 ? 0 : p[0].length);
+        }
+
+        public Program(char[][] p, int r, int c) {
+            this(LaserGrid.of(p, r, c));
+        }
+
+        public Program(LaserGrid g) {
+            int r = g.rows();
+            int c = g.cols();
+            this.rows = r;
+            this.cols = c;
+            this.grid = g;
+            this.literals = new ConcurrentHashMap<Long, Literal>();
+            if ((long)r * c <= MAX_TRACED_CELLS) {
+                Reach reach = new Reach(g);
+                this.readsInput = reach.used[OP_INPUT] || reach.used[OP_INPUT_STACK];
+                this.cellIds = reach.ids;
+                this.traces = new Trace[reach.count * 4];
+                this.heat = new byte[reach.count * 4];
+            } else {
+                this.readsInput = g.contains('i', 'I');
+                this.cellIds = null;
+                this.traces = null;
+                this.heat = null;
+            }
+        }
+
+        public static Program load(String file) throws IOException {
+            return new Program(LaserGrid.load(file));
+        }
+
+        public boolean readsInput() {
+            return readsInput;
+        }
+
+        // SHA-256 of the grid, which a checkpoint must match to be resumed.
+        public byte[] hash() {
+            byte[] h = hash;
+            if (h == null) {
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException nsae) {
+                    throw new IllegalStateException(nsae);
                 }
-                break;
-            case WEST:
-                pCol--;
-                if (pCol < 0) {
-                    pCol = cols - 1;
+                byte[] row = new byte[Math.max(8, cols * 2)];
+                md.update(java.nio.ByteBuffer.wrap(row, 0, 8).putInt(rows).putInt(cols).array(), 0, 8);
+                for (int r = 0; r < rows; r++) {
+                    for (int c = 0; c < cols; c++) {
+                        char ch = grid.charAt(r, c);
+                        row[2 * c] = (byte)(ch >> 8);
+                        row[2 * c + 1] = (byte)ch;
+                    }
+                    md.update(row, 0, cols * 2);
                 }
-                break;
+                hash = h = md.digest();
+            }
+            return h.clone();
         }
-    }
 
-    private void branch(char curr) {
-        long val = (long)memory.get(addr).peek();
-        switch (curr) {
-            case '⌞':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        if (val == 0)
-                            dir = EAST;
-                        break;
-                    case EAST:
-                    case WEST:
-                        if (val == 0)
-                            dir = NORTH;
+        public Laser newExecution(List<Object> args, LaserOutput out) {
+            LinkedList<Object> input = new LinkedList<Object>();
+            for (Object arg : args)
+                input.push(arg);
+            return new Laser(this, input, false, !readsInput, out);
+        }
+
+        public Laser newExecution(LaserInput input, LaserOutput out) {
+            return new Laser(this, input, false, !readsInput, out);
+        }
+
+        public Result execute(List<Object> args, LaserOutput out) {
+            return execute(newExecution(args, out));
+        }
+
+        public Result execute(LaserInput input, LaserOutput out) {
+            return execute(newExecution(input, out));
+        }
+
+        // Runs under the given limits; one that is hit ends the run with a LimitError result.
+        public Result execute(List<Object> args, LaserOutput out, LaserLimits limits) {
+            Laser laser = newExecution(args, out);
+            laser.setLimits(limits);
+            return execute(laser);
+        }
+
+        public Result execute(LaserInput input, LaserOutput out, LaserLimits limits) {
+            Laser laser = newExecution(input, out);
+            laser.setLimits(limits);
+            return execute(laser);
+        }
+
+        static Result execute(Laser laser) {
+            try {
+                laser.run();
+                return new Result(laser.steps, null);
+            } catch (RuntimeException re) {
+                return new Result(laser.steps, re);
+            }
+        }
+
+        Trace warm(int key, int row, int col, int d) {
+            if (++heat[key] != HOT_THRESHOLD)
+                return null;
+            Trace t = compileTrace(row, col, d);
+            traces[key] = t;
+            return t;
+        }
+
+        // Follows the beam from (row, col, dir) through every cell whose effect on
+        // control flow is static, stopping in front of the next branch, literal or #.
+        private Trace compileTrace(int row, int col, int d) {
+            TraceBuilder tb = new TraceBuilder();
+            int[] cats = new int[LaserMetrics.COUNTERS];
+            int length = 0;
+            while (length < MAX_TRACE_LENGTH) {
+                int op = grid.op(row, col);
+                if (op >= OP_BRANCH_UP_RIGHT && op <= OP_BRANCH_DOWN_LEFT || op == OP_TERMINATE || op == OP_SPLIT)
+                    break;
+                if (op == OP_STRING || op == OP_RAW || op == OP_NUMBER) {
+                    Literal lit = literal(row, col, d);
+                    if (lit == null)
                         break;
+                    tb.add(OP_LITERAL, tb.value(lit.value), 0);
+                    length += lit.cells;
+                    cats[LaserMetrics.LITERAL]++;
+                    cats[LaserMetrics.LITERAL_CELLS] += lit.cells;
+                    row = lit.row;
+                    col = lit.col;
+                    d = lit.dir;
+                } else {
+                    cats[CATEGORY[op]]++;
+                    if (isMirror(op))
+                        d = TURNS[op][d];
+                    else if (op != OP_NOP && op != OP_LASER)
+                        tb.add(op, 0, 0);
                 }
-                break;
-            case '⌜':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        if (val == 0)
-                            dir = EAST;
-                        break;
-                    case EAST:
-                    case WEST:
-                        if (val == 0)
-                            dir = SOUTH;
-                        break;
+                row = wrap(row + DROW[d], rows);
+                col = wrap(col + DCOL[d], cols);
+                if (op == OP_LASER) {
+                    tb.add(OP_LASER, grid.op(row, col), 0);
+                    row = wrap(row + DROW[d], rows);
+                    col = wrap(col + DCOL[d], cols);
                 }
-                break;
-            case '⌟':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        if (val == 0)
-                            dir = WEST;
-                        break;
-                    case EAST:
-                    case WEST:
-                        if (val == 0)
-                            dir = NORTH;
-                        break;
+                length++;
+            }
+            return new Trace(tb.ops(), tb.values.toArray(), cats, length, row, col, d);
+        }
+
+        Literal literal(int row, int col, int d) {
+            Long key = (((long)row * cols + col) << 2) | d;
+            Literal lit = literals.get(key);
+            if (lit == null) {
+                lit = scanLiteral(row, col, d);
+                literals.put(key, lit);
+            }
+            return lit == Literal.NONE ? null : lit;
+        }
+
+        // Runs the beam through a literal the same way step() would in STRING_MODE,
+        // RAW_MODE or NUMBER_MODE. Literals that never close or do not parse are left
+        // to step() so they fail (or spin) exactly as before.
+        private Literal scanLiteral(int row, int col, int d) {
+            int open = grid.op(row, col);
+            boolean mirrors = open != OP_RAW;
+            StringBuilder sb = new StringBuilder();
+            for (int n = 1; n <= 4L * rows * cols + 1; n++) {
+                row = wrap(row + DROW[d], rows);
+                col = wrap(col + DCOL[d], cols);
+                int op = grid.op(row, col);
+                if (op == open) {
+                    if (open != OP_NUMBER)
+                        return new Literal(sb.toString(), n, row, col, d);
+                    try {
+                        return new Literal(parseNumber(sb.toString()), n, row, col, d);
+                    } catch (NumberFormatException nfe) {
+                        return Literal.NONE;
+                    }
+                } else if (mirrors && isMirror(op)) {
+                    d = TURNS[op][d];
+                } else {
+                    sb.append(grid.charAt(row, col));
                 }
-                break;
-            case '⌝':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        if (val == 0)
-                            dir = WEST;
-                        break;
-                    case EAST:
-                    case WEST:
-                        if (val == 0)
-                            dir = SOUTH;
-                        break;
+            }
+            return Literal.NONE;
+        }
+    }
+
+    /**
+     * The outcome of {@link Program#execute}: either a normal termination or the
+     * error that stopped the program.
+     */
+    public static final class Result {
+        private final long steps;
+        private final RuntimeException error;
+
+        Result(long steps, RuntimeException error) {
+            this.steps = steps;
+            this.error = error;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+
+        public long steps() {
+            return steps;
+        }
+
+        public RuntimeException error() {
+            return error;
+        }
+
+        public String errorType() {
+            if (error == null)
+                return null;
+            if (error instanceof LaserException)
+                return ((LaserException)error).getType();
+            return error.getClass().getSimpleName();
+        }
+
+        public String errorMessage() {
+            if (error == null || error instanceof LaserException)
+                return error == null ? null : error.getMessage();
+            return error.getMessage() == null ? errorType() : errorType() + ": " + error.getMessage();
+        }
+    }
+
+    private static final class Literal {
+        static final Literal NONE = new Literal(null, 0, 0, 0, 0);
+
+        final Object value;
+        final int cells;
+        final int row;
+        final int col;
+        final int dir;
+
+        Literal(Object value, int cells, int row, int col, int dir) {
+            this.value = value;
+            this.cells = cells;
+            this.row = row;
+            this.col = col;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * The cells a beam can reach from (0, 0) heading east, found by following every
+     * path through mirrors, both sides of every branch and splitter, L and the
+     * literal modes without running anything. Reachable cells are numbered densely in row-major
+     * order, so that per-cell tables only need an entry for each of them; ids holds
+     * -1 for the rest. used marks the opcodes the beam can execute as instructions.
+     */
+    static final class Reach {
+        private static final int CODE = 0;
+        private static final int STRING = 1;
+        private static final int RAW = 2;
+        private static final int NUMBER = 3;
+
+        final int[] ids;
+        final boolean[] used = new boolean[128];
+        final int count;
+
+        private final int rows;
+        private final int cols;
+        private final long[] seen;
+        private int[] work = new int[64];
+        private int top;
+
+        Reach(LaserGrid g) {
+            this.rows = g.rows();
+            this.cols = g.cols();
+            int cells = rows * cols;
+            this.ids = new int[cells];
+            this.seen = new long[(int)(((long)cells * 16 + 63) >>> 6)];
+            Arrays.fill(ids, -1);
+            if (cells > 0)
+                visit(0, EAST, CODE);
+            while (top > 0) {
+                int s = work[--top];
+                int cell = s >>> 4;
+                int d = (s >>> 2) & 3;
+                int m = s & 3;
+                int row = cell / cols;
+                int col = cell - row * cols;
+                int op = g.op(row, col);
+                ids[cell] = 0;
+                if (m == CODE) {
+                    used[op] = true;
+                    if (isMirror(op)) {
+                        d = TURNS[op][d];
+                    } else if (op >= OP_BRANCH_UP_RIGHT && op <= OP_BRANCH_DOWN_LEFT) {
+                        visit(move(row, col, TURNS[op][d]), TURNS[op][d], CODE);
+                    } else if (op == OP_SPLIT) {
+                        visit(move(row, col, (d + 1) & 3), (d + 1) & 3, CODE);
+                    } else if (op == OP_STRING) {
+                        m = STRING;
+                    } else if (op == OP_RAW) {
+                        m = RAW;
+                    } else if (op == OP_NUMBER) {
+                        m = NUMBER;
+                    } else if (op == OP_LASER) {
+                        row = wrap(row + DROW[d], rows);
+                        col = wrap(col + DCOL[d], cols);
+                        ids[row * cols + col] = 0;
+                    } else if (op == OP_TERMINATE) {
+                        continue;
+                    }
+                } else if (m == STRING && op == OP_STRING || m == RAW && op == OP_RAW || m == NUMBER && op == OP_NUMBER) {
+                    m = CODE;
+                } else if (m != RAW && isMirror(op)) {
+                    d = TURNS[op][d];
                 }
-                break;
+                visit(move(row, col, d), d, m);
+            }
+            int n = 0;
+            for (int i = 0; i < cells; i++) {
+                if (ids[i] == 0)
+                    ids[i] = n++;
+            }
+            this.count = n;
+        }
+
+        private int move(int row, int col, int d) {
+            return wrap(row + DROW[d], rows) * cols + wrap(col + DCOL[d], cols);
+        }
+
+        private void visit(int cell, int d, int m) {
+            int s = (cell << 4) | (d << 2) | m;
+            if ((seen[s >>> 6] & (1L << s)) != 0)
+                return;
+            seen[s >>> 6] |= 1L << s;
+            if (top == work.length)
+                work = Arrays.copyOf(work, top * 2);
+            work[top++] = s;
         }
     }
-    
-    private void parseMirror(char curr) {
-        switch (curr) {
-            case '/':
-                switch (dir) {
-                    case NORTH:
-                        dir = EAST;
-                        break;
-                    case EAST:
-                        dir = NORTH;
-                        break;
-                    case SOUTH:
-                        dir = WEST;
-                        break;
-                    case WEST:
-                        dir = SOUTH;
-                        break;
-                    default:
-                        System.err.println("InternalError: unknown pointer direction");
-                        System.exit(1);
+
+    private static final class LoopState {
+        final long fingerprint;
+        final int row;
+        final int col;
+        final int dir;
+        final int mode;
+        final int addr;
+        final long inputs;
+        final LaserStack[] memory;
+
+        LoopState(Laser l, long fingerprint) {
+            this.fingerprint = fingerprint;
+            this.row = l.pRow;
+            this.col = l.pCol;
+            this.dir = l.dir;
+            this.mode = l.mode;
+            this.addr = l.addr;
+            this.inputs = l.input.consumed();
+            this.memory = new LaserStack[l.memory.size()];
+            for (int i = 0; i < memory.length; i++)
+                memory[i] = new LaserStack(l.memory.get(i));
+        }
+
+        boolean matches(Laser l) {
+            if (row != l.pRow || col != l.pCol || dir != l.dir || mode != l.mode
+                    || addr != l.addr || inputs != l.input.consumed() || memory.length != l.memory.size())
+                return false;
+            for (int i = 0; i < memory.length; i++) {
+                if (!memory[i].contentEquals(l.memory.get(i)))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Collects the instructions of a trace and rewrites them as they arrive:
+     * constant pushes feeding a binary or unary op are folded when the result is
+     * certain, a push consumed by one is fused into it, push-then-pop pairs vanish,
+     * runs of p become one instruction and U, push, D becomes a push onto the next
+     * stack. Every rewrite has exactly the effect, errors included, of the cells it
+     * replaces. Instructions are kept as (op, arg, arg) triples until ops() packs them.
+     */
+    private static final class TraceBuilder {
+        final ArrayList<Object> values = new ArrayList<Object>();
+        private int[] code = new int[48];
+        private int n;
+
+        int value(Object v) {
+            values.add(v);
+            return values.size() - 1;
+        }
+
+        void add(int op, int a, int b) {
+            if (isBinOp(op) && n >= 2 && constant(n - 1) != null && constant(n - 2) != null) {
+                long x = constant(n - 1);
+                long y = constant(n - 2);
+                if (!overflows(op, x, y) && !(x == 0 && (op == OP_DIV || op == OP_MOD))) {
+                    n -= 2;
+                    push(numOp(op, x, y));
+                    return;
                 }
-                break;
-            case '\\':
-                dir = 3 - dir;
-                break;
-            case '>':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        dir = EAST;
-                        break;
+            }
+            if (isBinOp(op) && n >= 1 && constant(n - 1) != null) {
+                long x = constant(n - 1);
+                n--;
+                emit(OP_CONST_BINOP, op, value(x));
+                return;
+            }
+            if ((op == OP_DEC || op == OP_INC || op == OP_NOT || op == OP_BITNOT) && n >= 1 && constant(n - 1) != null) {
+                long x = constant(n - 1);
+                if (op == OP_DEC && x != Long.MIN_VALUE || op == OP_INC && x != Long.MAX_VALUE
+                        || op == OP_NOT || op == OP_BITNOT) {
+                    n--;
+                    push(op == OP_DEC ? x - 1 : op == OP_INC ? x + 1 : op == OP_NOT ? flipBits(x) : ~x);
+                    return;
                 }
-                break;
-            case '<':
-                switch (dir) {
-                    case NORTH:
-                    case SOUTH:
-                        dir = WEST;
-                        break;
+            }
+            if (op == OP_POP && n >= 1) {
+                int last = code[3 * (n - 1)];
+                if (last == OP_LITERAL || last >= OP_DIGIT) {
+                    n--;
+                    return;
                 }
-                break;
-            case '^':
-                switch (dir) {
-                    case EAST:
-                    case WEST:
-                        dir = NORTH;
-                        break;
+                if (last == OP_POP || last == OP_POP_N) {
+                    code[3 * (n - 1)] = OP_POP_N;
+                    code[3 * (n - 1) + 1] = last == OP_POP ? 2 : code[3 * (n - 1) + 1] + 1;
+                    return;
                 }
-                break;
-            case 'v':
-                switch (dir) {
-                    case EAST:
-                    case WEST:
-                        dir = SOUTH;
-                        break;
+            }
+            if (op == OP_DOWN && n >= 2 && code[3 * (n - 2)] == OP_UP) {
+                int last = code[3 * (n - 1)];
+                if (last == OP_LITERAL || last >= OP_DIGIT) {
+                    int v = last == OP_LITERAL ? code[3 * (n - 1) + 1] : value((long)(last - OP_DIGIT));
+                    n -= 2;
+                    emit(OP_PUSH_UP, v, 0);
+                    return;
                 }
-                break;
-            default:
-                System.err.println("SyntaxError: unknown character " + curr);
-                System.exit(1);
+            }
+            emit(op, a, b);
+        }
+
+        // the value pushed by instruction i, if it is a constant long
+        private Long constant(int i) {
+            int op = code[3 * i];
+            if (op >= OP_DIGIT)
+                return (long)(op - OP_DIGIT);
+            if (op == OP_LITERAL && values.get(code[3 * i + 1]) instanceof Long)
+                return (Long)values.get(code[3 * i + 1]);
+            return null;
+        }
+
+        private void push(long v) {
+            if (v >= 0 && v <= 9)
+                emit(OP_DIGIT + (int)v, 0, 0);
+            else
+                emit(OP_LITERAL, value(v), 0);
+        }
+
+        private void emit(int op, int a, int b) {
+            if (3 * n + 3 > code.length)
+                code = Arrays.copyOf(code, code.length * 2);
+            code[3 * n] = op;
+            code[3 * n + 1] = a;
+            code[3 * n + 2] = b;
+            n++;
+        }
+
+        int[] ops() {
+            int[] ops = new int[3 * n];
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int op = code[3 * i];
+                ops[m++] = op;
+                if (op == OP_LASER || op == OP_LITERAL || op == OP_POP_N || op == OP_PUSH_UP || op == OP_CONST_BINOP)
+                    ops[m++] = code[3 * i + 1];
+                if (op == OP_CONST_BINOP)
+                    ops[m++] = code[3 * i + 2];
+            }
+            return Arrays.copyOf(ops, m);
+        }
+    }
+
+    private static final class Trace {
+        final int[] ops;
+        final Object[] values;
+        final int[] counts;
+        final int steps;
+        final int row;
+        final int col;
+        final int dir;
+
+        Trace(int[] ops, Object[] values, int[] counts, int steps, int row, int col, int dir) {
+            this.ops = ops;
+            this.values = values;
+            this.counts = counts;
+            this.steps = steps;
+            this.row = row;
+            this.col = col;
+            this.dir = dir;
+        }
+
+        // Adds the cells this trace covers to a run's metrics.
+        void count(long[] total) {
+            for (int i = 0; i < counts.length; i++)
+                total[i] += counts[i];
         }
     }
 }
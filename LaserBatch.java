@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a manifest of Laser jobs in a single JVM. Each non-empty line of the manifest
+ * is a program path followed by its arguments, written the same way as on the
+ * command line (a token starting with a double quote runs to the matching closing
+ * quote). Jobs run in parallel on a work-stealing pool; decoded programs are cached
+ * by content hash, and each job's output is printed in manifest order. The cache
+ * keeps the most recently used programs, DEFAULT_CACHE_SIZE unless told otherwise.
+ */
+public class LaserBatch {
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private final Map<String, Laser.Program> cache;
+    private final ForkJoinPool pool;
+    private LaserLimits limits = LaserLimits.NONE;
+    private boolean metrics;
+
+    public LaserBatch(int threads) {
+        this(threads, DEFAULT_CACHE_SIZE);
+    }
+
+    public LaserBatch(int threads, int cacheSize) {
+        this.pool = new ForkJoinPool(threads);
+        this.cache = Collections.synchronizedMap(new ProgramCache(cacheSize));
+    }
+
+    public static void main(String[] args) throws IOException {
+        run(args);
+    }
+
+    public static void run(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Laser -batch <jobs.txt> <-threads N> <-metrics> <-max-steps N ...>");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        LaserLimits limits = LaserLimits.NONE;
+        boolean metrics = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-metrics"))
+                metrics = true;
+            else if (LaserLimits.isFlag(args[i]) && i + 1 < args.length)
+                limits = LaserLimits.parse(limits, args[i], args[++i]);
+        }
+        LaserBatch batch = new LaserBatch(threads);
+        batch.setLimits(limits);
+        batch.setMetrics(metrics);
+        boolean ok;
+        try {
+            ok = batch.runManifest(Paths.get(args[0]), System.out, System.err);
+        } finally {
+            batch.shutdown();
+        }
+        if (metrics)
+            LaserMetrics.report(System.err);
+        if (!ok)
+            System.exit(1);
+    }
+
+    public boolean runManifest(Path manifest, PrintStream out, PrintStream err) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<ForkJoinTask<Job>> tasks = new ArrayList<ForkJoinTask<Job>>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty())
+                continue;
+            final Job job = new Job(base.resolve(tokens.get(0)), tokens.subList(1, tokens.size()));
+            tasks.add(pool.submit(new Callable<Job>() {
+                public Job call() {
+                    job.run(LaserBatch.this);
+                    return job;
+                }
+            }));
+        }
+
+        boolean ok = true;
+        for (ForkJoinTask<Job> task : tasks) {
+            Job job = task.join();
+            ByteArrayOutputStream buf = (ByteArrayOutputStream)job.output;
+            out.write(buf.toByteArray(), 0, buf.size());
+            out.flush();
+            if (job.error != null) {
+                err.println(job.error);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // Limits applied to every job.
+    public void setLimits(LaserLimits l) {
+        limits = l;
+    }
+
+    // Collects metrics for every job; see LaserMetrics.
+    public void setMetrics(boolean on) {
+        metrics = on;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    Laser.Program program(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        String key = hash(bytes);
+        Laser.Program prog = cache.get(key);
+        if (prog == null) {
+            prog = new Laser.Program(LaserGrid.read(ByteBuffer.wrap(bytes)));
+            Laser.Program prev = cache.putIfAbsent(key, prog);
+            if (prev != null)
+                prog = prev;
+        }
+        return prog;
+    }
+
+    // Least recently used programs are evicted once there are more than max.
+    private static final class ProgramCache extends LinkedHashMap<String, Laser.Program> {
+        private static final long serialVersionUID = 1L;
+
+        private final int max;
+
+        ProgramCache(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Laser.Program> eldest) {
+            return size() > max;
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        int n = line.length();
+        while (i < n) {
+            while (i < n && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (i >= n)
+                break;
+            int start = i;
+            if (line.charAt(i) == '"') {
+                i = line.indexOf('"', i + 1);
+                i = i < 0 ? n : i + 1;
+            }
+            while (i < n && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            tokens.add(line.substring(start, i));
+        }
+        return tokens;
+    }
+
+    static final class Job {
+        final Path file;
+        final List<String> args;
+        final OutputStream output;
+        final int policy;
+        String error;
+
+        Job(Path file, List<String> args) {
+            this(file, args, new ByteArrayOutputStream(), LaserOutput.FLUSH_ON_EXIT);
+        }
+
+        Job(Path file, List<String> args, OutputStream output, int policy) {
+            this.file = file;
+            this.args = args;
+            this.output = output;
+            this.policy = policy;
+        }
+
+        void run(LaserBatch batch) {
+            if (file.toString().indexOf(".lsr") == -1) {
+                error = "FileError: Laser program files must end in .lsr";
+                return;
+            }
+            List<Object> input = new ArrayList<Object>();
+            for (String arg : args)
+                input.add(Laser.parseInput(arg));
+            try {
+                Laser.Program prog = batch.program(file);
+                Laser laser = prog.newExecution(input, new LaserOutput(output, policy));
+                laser.setLimits(batch.limits);
+                laser.setMetrics(batch.metrics);
+                Laser.Result result = Laser.Program.execute(laser);
+                if (!result.ok())
+                    error = file + ": " + result.errorMessage();
+            } catch (IOException ioe) {
+                error = "FileError: could not read " + file;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The beams of a run in multi-beam mode. A Y cell splits the beam that crosses
+ * it: that beam carries on, and a new one leaves the cell turned clockwise with
+ * copies of all of its stacks (shared copy-on-write, so a split costs one object
+ * per stack), the same current stack and a copy of the arguments it has not read.
+ * Every new beam runs as its own task on a fork-join pool with one thread per core.
+ *
+ * Output does not depend on scheduling. The first beam writes to the program's
+ * output as usual; every other beam writes into a buffer. Once the first beam has
+ * ended, the run waits for the rest (the join) and appends their output in beam
+ * order: a beam, then each beam it split off in the order it split them, each
+ * followed by the beams those split off. The run fails with the error of the first
+ * beam in that order that failed, after the output of the beams before it and of
+ * the failed beam itself; beams still running then are stopped.
+ */
+public final class LaserBeams {
+    public static final int DEFAULT_MAX_BEAMS = 1024;
+
+    private final int max;
+    private final AtomicInteger started = new AtomicInteger(1);
+    private final Queue<Laser> lasers = new ConcurrentLinkedQueue<Laser>();
+    private final Beam root = new Beam(null);
+    private ForkJoinPool pool;
+
+    LaserBeams(int max) {
+        this.max = max;
+    }
+
+    Beam root() {
+        return root;
+    }
+
+    Beam newBeam() {
+        if (started.incrementAndGet() > max)
+            throw LaserLimits.exceeded("beam", max, "beams");
+        return new Beam(new ByteArrayOutputStream());
+    }
+
+    // Runs laser as beam b, which parent has split off. Called on parent's thread.
+    void start(Beam parent, final Beam b, final Laser laser) {
+        parent.children.add(b);
+        lasers.add(laser);
+        b.done = pool().submit(new Runnable() {
+            public void run() {
+                try {
+                    laser.run();
+                } catch (RuntimeException re) {
+                    b.error = re;
+                }
+            }
+        });
+    }
+
+    // Waits for every beam split off from the first and appends their output to out.
+    void join(LaserOutput out) {
+        for (Beam b : root.children)
+            join(b, out);
+    }
+
+    private void join(Beam b, LaserOutput out) {
+        try {
+            b.done.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new LaserException("BeamError", "interrupted while waiting for a beam");
+        } catch (ExecutionException ee) {
+            throw new LaserException("BeamError", "beam failed: " + ee.getCause());
+        }
+        byte[] bytes = b.bytes.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        if (b.error != null)
+            throw b.error;
+        for (Beam c : b.children)
+            join(c, out);
+    }
+
+    // Stops the beams that are still running, once the run's outcome is known.
+    void stop() {
+        for (Laser laser : lasers)
+            laser.cancel();
+        synchronized (this) {
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
+    static final class Beam {
+        final ByteArrayOutputStream bytes;
+        // only touched by the beam's own thread until it has finished
+        final List<Beam> children = new ArrayList<Beam>();
+        Future<?> done;
+        RuntimeException error;
+
+        Beam(ByteArrayOutputStream bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A long-lived interpreter that runs programs for clients on the loopback
+ * interface, so that short programs skip JVM startup and run on code the JIT has
+ * already compiled. Decoded programs are cached by content hash, as in batch mode.
+ *
+ * A client sends one line, a program path followed by its arguments in the batch
+ * manifest format, and reads back lines tagged by their first byte:
+ *   1 a line of output, without the tag; the newline ending it is only printed
+ *     if another frame follows that is not n
+ *   n the last output line had no newline
+ *   3 an error message
+ *   0 the exit status, always the last frame
+ * Output is streamed as the program writes it, in 64 KB chunks. A client that has
+ * not sent its request line within the read timeout is disconnected, and so is
+ * one that stops reading its output for longer than the write timeout; the
+ * program then runs on with its output dropped. A request line longer than
+ * MAX_REQUEST_BYTES is answered with an error frame.
+ *
+ * Usage: java Laser -daemon [-port N] [-threads N] [-cache N] [-read-timeout ms]
+ *        [-write-timeout ms] [-metrics] [-max-steps N ...]
+ */
+public class LaserDaemon {
+    public static final int DEFAULT_PORT = 4747;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    public static final int DEFAULT_WRITE_TIMEOUT = 10000;
+    public static final int MAX_REQUEST_BYTES = 1 << 20;
+
+    private final LaserBatch batch;
+    private final ServerSocket server;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService watchdog;
+    private final Set<Frames> active = ConcurrentHashMap.newKeySet();
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+
+    public LaserDaemon(int port, int threads) throws IOException {
+        this(port, threads, LaserBatch.DEFAULT_CACHE_SIZE);
+    }
+
+    public LaserDaemon(int port, int threads, int cacheSize) throws IOException {
+        this.batch = new LaserBatch(1, cacheSize);
+        this.server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "laser-daemon-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                closeStalled();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        run(args);
+    }
+
+    public static void run(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = LaserBatch.DEFAULT_CACHE_SIZE;
+        int readTimeout = DEFAULT_READ_TIMEOUT;
+        int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+        LaserLimits limits = LaserLimits.NONE;
+        boolean metrics = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-cache") && i + 1 < args.length)
+                cacheSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-read-timeout") && i + 1 < args.length)
+                readTimeout = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-write-timeout") && i + 1 < args.length)
+                writeTimeout = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-metrics"))
+                metrics = true;
+            else if (LaserLimits.isFlag(args[i]) && i + 1 < args.length)
+                limits = LaserLimits.parse(limits, args[i], args[++i]);
+        }
+        LaserDaemon daemon = new LaserDaemon(port, threads, cacheSize);
+        daemon.setReadTimeout(readTimeout);
+        daemon.setWriteTimeout(writeTimeout);
+        daemon.batch.setLimits(limits);
+        daemon.batch.setMetrics(metrics);
+        System.err.println("Laser daemon listening on " + daemon.server.getLocalSocketAddress());
+        daemon.serve();
+    }
+
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                final Socket client = server.accept();
+                workers.execute(new Runnable() {
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            watchdog.shutdown();
+            batch.shutdown();
+        }
+    }
+
+    // How long a client may take to send its request line, in ms; 0 waits forever.
+    public void setReadTimeout(int ms) {
+        readTimeout = ms;
+    }
+
+    // How long a single write to a client may stay blocked, in ms, before the
+    // client is disconnected; 0 waits forever.
+    public void setWriteTimeout(int ms) {
+        writeTimeout = ms;
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void handle(Socket client) {
+        try {
+            Frames frames = null;
+            try {
+                frames = new Frames(client);
+                active.add(frames);
+                client.setSoTimeout(readTimeout);
+                String line;
+                try {
+                    line = readLine(client.getInputStream());
+                } catch (LaserException le) {
+                    frames.finish(le.getMessage(), 1);
+                    return;
+                }
+                List<String> tokens = line == null ? Collections.<String>emptyList() : LaserBatch.tokenize(line);
+                if (tokens.isEmpty()) {
+                    frames.finish("DaemonError: expected a program path and its arguments", 1);
+                    return;
+                }
+                String path = tokens.get(0);
+                if (path.startsWith("\"") && path.endsWith("\"") && path.length() > 1)
+                    path = path.substring(1, path.length() - 1);
+                LaserBatch.Job job = new LaserBatch.Job(Paths.get(path), tokens.subList(1, tokens.size()),
+                        frames, LaserOutput.FLUSH_ON_SIZE);
+                job.run(batch);
+                frames.finish(job.error, job.error == null ? 0 : 1);
+            } finally {
+                if (frames != null)
+                    active.remove(frames);
+                client.close();
+            }
+        } catch (IOException ioe) {
+            // the client went away or was too slow to send its request
+        }
+    }
+
+    // Disconnects the clients whose current write has been blocked for longer
+    // than the write timeout. The blocked write then fails, and LaserOutput drops
+    // the rest of the output.
+    private void closeStalled() {
+        long timeout = writeTimeout;
+        if (timeout == 0)
+            return;
+        long now = System.nanoTime();
+        for (Frames f : active) {
+            if (f.writing && now - f.since > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                try {
+                    f.client.close();
+                } catch (IOException ioe) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() == MAX_REQUEST_BYTES)
+                throw new LaserException("DaemonError", "request line longer than " + MAX_REQUEST_BYTES + " bytes");
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0)
+            return null;
+        return new String(line.toByteArray(), StandardCharsets.UTF_8).replace("\r", "");
+    }
+
+    // Tags every output line with 1, so a plain line-reading client can tell
+    // output from the error and status frames that follow it.
+    private static final class Frames extends OutputStream {
+        final Socket client;
+        private final OutputStream out;
+        private boolean lineStart = true;
+        private byte[] buf = new byte[256];
+        // whether a write to the client is in progress, and since when
+        volatile boolean writing;
+        volatile long since;
+
+        Frames(Socket client) throws IOException {
+            this.client = client;
+            this.out = client.getOutputStream();
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buf.length < len * 2)
+                buf = new byte[len * 2];
+            int n = 0;
+            for (int i = off; i < off + len; i++) {
+                if (lineStart)
+                    buf[n++] = '1';
+                buf[n++] = b[i];
+                lineStart = b[i] == '\n';
+            }
+            send(buf, n);
+        }
+
+        void finish(String error, int status) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            if (!lineStart)
+                sb.append("\nn\n");
+            if (error != null)
+                sb.append('3').append(error.replace('\n', ' ')).append('\n');
+            sb.append('0').append(status).append('\n');
+            byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+            send(b, b.length);
+            out.flush();
+        }
+
+        private void send(byte[] b, int len) throws IOException {
+            since = System.nanoTime();
+            writing = true;
+            try {
+                out.write(b, 0, len);
+            } finally {
+                writing = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * A runtime error raised by a Laser program, such as popping an empty input
+ * stack. The type is the prefix the interpreter reports, e.g. "IndexError".
+ */
+public class LaserException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String type;
+
+    public LaserException(String type, String message) {
+        super(type + ": " + message);
+        this.type = type;
+    }
+
+    public String getType() {
+        return type;
+    }
+}
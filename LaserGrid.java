@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The cells of a Laser program together with their decoded opcodes. Cells past the
+ * end of a line read as '\0', as they did in the padded char[rows][maxLen] grid.
+ *
+ * Compact grids are stored as flat arrays. Ragged grids, where most of the
+ * rows x cols rectangle is padding, keep one run per row instead: the row's
+ * characters from its first non-space cell to its end, with the leading spaces
+ * only counted.
+ */
+public abstract class LaserGrid {
+    private static final int MAP_CHUNK = 1 << 30;
+    // the most cells a flat array can hold
+    private static final long MAX_DENSE_CELLS = Integer.MAX_VALUE - 8;
+
+    protected final int rows;
+    protected final int cols;
+
+    protected LaserGrid(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public abstract int op(int row, int col);
+
+    public abstract char charAt(int row, int col);
+
+    public abstract boolean contains(char a, char b);
+
+    public static LaserGrid of(char[][] p, int r, int c) {
+        if ((long)r * c > MAX_DENSE_CELLS)
+            return new Ragged(p, new int[r], r, c);
+        return new Dense(p, r, c);
+    }
+
+    public static LaserGrid load(String file) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        try {
+            RowBuilder rb = new RowBuilder();
+            CharsetDecoder dec = decoder();
+            CharBuffer cb = CharBuffer.allocate(1 << 16);
+            long size = ch.size();
+            long pos = 0;
+            while (pos < size) {
+                MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                boolean last = pos + bb.capacity() == size;
+                decode(dec, bb, cb, rb, last);
+                if (!last && bb.position() == 0)
+                    throw new IOException("could not decode " + file);
+                pos += bb.position();
+            }
+            if (size == 0)
+                decode(dec, ByteBuffer.allocate(0), cb, rb, true);
+            flush(dec, cb, rb);
+            return rb.build();
+        } finally {
+            ch.close();
+        }
+    }
+
+    public static LaserGrid read(ByteBuffer bytes) {
+        RowBuilder rb = new RowBuilder();
+        CharsetDecoder dec = decoder();
+        CharBuffer cb = CharBuffer.allocate(1 << 16);
+        decode(dec, bytes, cb, rb, true);
+        flush(dec, cb, rb);
+        return rb.build();
+    }
+
+    private static CharsetDecoder decoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static void decode(CharsetDecoder dec, ByteBuffer bb, CharBuffer cb, RowBuilder rb, boolean last) {
+        while (true) {
+            CoderResult cr = dec.decode(bb, cb, last);
+            cb.flip();
+            rb.append(cb);
+            cb.clear();
+            if (cr.isUnderflow())
+                return;
+        }
+    }
+
+    private static void flush(CharsetDecoder dec, CharBuffer cb, RowBuilder rb) {
+        dec.flush(cb);
+        cb.flip();
+        rb.append(cb);
+        rb.end();
+    }
+
+    // Splits decoded text into lines the same way BufferedReader.readLine does.
+    private static final class RowBuilder {
+        private final ArrayList<char[]> lines = new ArrayList<char[]>();
+        private int[] starts = new int[256];
+        private char[] line = new char[256];
+        private int len;
+        private int lead;
+        private boolean blank = true;
+        private boolean pending;
+        private boolean skipLf;
+        private int maxLen;
+        private long stored;
+
+        void append(CharBuffer cb) {
+            while (cb.hasRemaining()) {
+                char c = cb.get();
+                if (skipLf) {
+                    skipLf = false;
+                    if (c == '\n')
+                        continue;
+                }
+                if (c == '\n' || c == '\r') {
+                    skipLf = c == '\r';
+                    endLine();
+                    continue;
+                }
+                pending = true;
+                if (blank) {
+                    if (c == ' ') {
+                        lead++;
+                        continue;
+                    }
+                    blank = false;
+                }
+                if (len == line.length)
+                    line = Arrays.copyOf(line, len * 2);
+                line[len++] = c;
+            }
+        }
+
+        void end() {
+            if (pending)
+                endLine();
+        }
+
+        private void endLine() {
+            if (lines.size() == starts.length)
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            starts[lines.size()] = lead;
+            lines.add(Arrays.copyOf(line, len));
+            maxLen = Math.max(maxLen, lead + len);
+            stored += len;
+            len = 0;
+            lead = 0;
+            blank = true;
+            pending = false;
+        }
+
+        LaserGrid build() {
+            int r = lines.size();
+            if (stored * 2 >= (long)r * maxLen && (long)r * maxLen <= MAX_DENSE_CELLS) {
+                char[][] p = new char[r][maxLen];
+                for (int i = 0; i < r; i++) {
+                    int s = starts[i];
+                    Arrays.fill(p[i], 0, s, ' ');
+                    char[] cs = lines.get(i);
+                    System.arraycopy(cs, 0, p[i], s, cs.length);
+                    lines.set(i, null);
+                }
+                return new Dense(p, r, maxLen);
+            }
+            return new Ragged(lines.toArray(new char[r][]), Arrays.copyOf(starts, r), r, maxLen);
+        }
+    }
+
+    static final class Dense extends LaserGrid {
+        private final char[] chars;
+        private final byte[] code;
+
+        Dense(char[][] p, int r, int c) {
+            super(r, c);
+            this.chars = new char[r * c];
+            this.code = new byte[r * c];
+            for (int i = 0; i < r; i++) {
+                for (int j = 0; j < c && j < p[i].length; j++) {
+                    chars[i * c + j] = p[i][j];
+                    code[i * c + j] = (byte)Laser.opcode(p[i][j]);
+                }
+            }
+        }
+
+        public int op(int row, int col) {
+            return code[row * cols + col];
+        }
+
+        public char charAt(int row, int col) {
+            return chars[row * cols + col];
+        }
+
+        public boolean contains(char a, char b) {
+            for (char ch : chars) {
+                if (ch == a || ch == b)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    static final class Ragged extends LaserGrid {
+        private static final byte SPACE = (byte)Laser.opcode(' ');
+        private static final byte PADDING = (byte)Laser.opcode('\0');
+
+        private final char[][] chars;
+        private final byte[][] code;
+        private final int[] starts;
+
+        Ragged(char[][] lines, int[] starts, int r, int c) {
+            super(r, c);
+            this.chars = lines;
+            this.starts = starts;
+            this.code = new byte[r][];
+            for (int i = 0; i < r; i++) {
+                code[i] = new byte[lines[i].length];
+                for (int j = 0; j < lines[i].length; j++)
+                    code[i][j] = (byte)Laser.opcode(lines[i][j]);
+            }
+        }
+
+        public int op(int row, int col) {
+            int j = col - starts[row];
+            if (j < 0)
+                return SPACE;
+            byte[] cs = code[row];
+            return j < cs.length ? cs[j] : PADDING;
+        }
+
+        public char charAt(int row, int col) {
+            int j = col - starts[row];
+            if (j < 0)
+                return ' ';
+            char[] cs = chars[row];
+            return j < cs.length ? cs[j] : '\0';
+        }
+
+        public boolean contains(char a, char b) {
+            for (char[] row : chars) {
+                for (char ch : row) {
+                    if (ch == a || ch == b)
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The values a program reads with i and I. Input either comes from a list built up
+ * front (the command line arguments) or is read lazily from a stream, one value per
+ * line, typed the same way as arguments. Streamed values are popped in the order
+ * they are read, and a line is only read and parsed when the program needs it.
+ */
+public abstract class LaserInput {
+    private long consumed;
+
+    public abstract boolean isEmpty();
+
+    protected abstract Object next();
+
+    public Object pop() {
+        if (isEmpty())
+            throw new NoSuchElementException();
+        consumed++;
+        return next();
+    }
+
+    // Number of values popped so far.
+    public long consumed() {
+        return consumed;
+    }
+
+    void setConsumed(long n) {
+        consumed = n;
+    }
+
+    // The values not yet popped, or null when they are still to be read from a stream.
+    public List<Object> remaining() {
+        return null;
+    }
+
+    public static LaserInput of(LinkedList<Object> values) {
+        return new ListInput(values);
+    }
+
+    public static LaserInput read(InputStream in) {
+        return read(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    public static LaserInput read(Reader reader) {
+        return new StreamInput(new BufferedReader(reader, 1 << 16));
+    }
+
+    private static final class ListInput extends LaserInput {
+        private final LinkedList<Object> values;
+
+        ListInput(LinkedList<Object> values) {
+            this.values = values;
+        }
+
+        public boolean isEmpty() {
+            return values.isEmpty();
+        }
+
+        protected Object next() {
+            return values.pop();
+        }
+
+        public List<Object> remaining() {
+            return values;
+        }
+    }
+
+    private static final class StreamInput extends LaserInput {
+        private final BufferedReader in;
+        private String line;
+        private boolean done;
+
+        StreamInput(BufferedReader in) {
+            this.in = in;
+        }
+
+        public boolean isEmpty() {
+            if (line == null && !done) {
+                try {
+                    line = in.readLine();
+                } catch (IOException ioe) {
+                    throw new LaserException("InputError", "could not read input: " + ioe.getMessage());
+                }
+                done = line == null;
+            }
+            return line == null;
+        }
+
+        protected Object next() {
+            String s = line;
+            line = null;
+            return s.isEmpty() ? s : Laser.parseInput(s);
+        }
+    }
+}
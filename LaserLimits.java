@@ -0,0 +1,124 @@
+/**
+ * Resource limits for running untrusted programs: steps, wall time, stack cells,
+ * the size of a single value and output bytes. A run that hits one ends with a
+ * LimitError instead of running forever or exhausting the heap.
+ *
+ * None of them costs anything per step. Steps and time are checked between
+ * traces and at most every TIME_SLICE steps; a trace or literal that would cross
+ * the step limit is stepped through cell by cell instead, so the limit is exact.
+ * Stack cells are charged when a stack allocates or grows its buffer and released
+ * when the stack is popped off with P; a copy made by R is charged in full even
+ * while it still shares its buffer. Values are checked where they can grow
+ * (string concatenation, multiplication and powers), and output when the output
+ * buffer is flushed or grown.
+ */
+public final class LaserLimits {
+    public static final LaserLimits NONE = new LaserLimits(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    static final int TIME_SLICE = 1 << 12;
+
+    private final long steps;
+    private final long millis;
+    private final long cells;
+    private final long valueBytes;
+    private final long outputBytes;
+
+    private LaserLimits(long steps, long millis, long cells, long valueBytes, long outputBytes) {
+        this.steps = steps;
+        this.millis = millis;
+        this.cells = cells;
+        this.valueBytes = valueBytes;
+        this.outputBytes = outputBytes;
+    }
+
+    public LaserLimits withSteps(long n) {
+        return new LaserLimits(n, millis, cells, valueBytes, outputBytes);
+    }
+
+    public LaserLimits withMillis(long n) {
+        return new LaserLimits(steps, n, cells, valueBytes, outputBytes);
+    }
+
+    public LaserLimits withCells(long n) {
+        return new LaserLimits(steps, millis, n, valueBytes, outputBytes);
+    }
+
+    // A string of n characters takes 2n bytes, a number of b bits b / 8.
+    public LaserLimits withValueBytes(long n) {
+        return new LaserLimits(steps, millis, cells, n, outputBytes);
+    }
+
+    public LaserLimits withOutputBytes(long n) {
+        return new LaserLimits(steps, millis, cells, valueBytes, n);
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long millis() {
+        return millis;
+    }
+
+    public long cells() {
+        return cells;
+    }
+
+    public long valueBytes() {
+        return valueBytes;
+    }
+
+    public long outputBytes() {
+        return outputBytes;
+    }
+
+    static boolean isFlag(String flag) {
+        return flag.equals("-max-steps") || flag.equals("-max-time") || flag.equals("-max-cells")
+                || flag.equals("-max-value") || flag.equals("-max-output");
+    }
+
+    // Applies a command line flag such as -max-steps N.
+    static LaserLimits parse(LaserLimits l, String flag, String value) {
+        switch (flag) {
+            case "-max-steps": return l.withSteps(Long.parseLong(value));
+            case "-max-time": return l.withMillis(Long.parseLong(value));
+            case "-max-cells": return l.withCells(Long.parseLong(value));
+            case "-max-value": return l.withValueBytes(Long.parseLong(value));
+            case "-max-output": return l.withOutputBytes(Long.parseLong(value));
+        }
+        throw new IllegalArgumentException("unknown limit " + flag);
+    }
+
+    static LaserException exceeded(String what, long limit, String unit) {
+        return new LaserException("LimitError", what + " limit of " + limit + " " + unit + " reached");
+    }
+
+    /**
+     * The stack cells and value sizes used by one run, shared by all of its stacks.
+     */
+    static final class Budget {
+        private final long cells;
+        private final long valueBytes;
+        private long used;
+
+        Budget(LaserLimits limits) {
+            this.cells = limits.cells;
+            this.valueBytes = limits.valueBytes;
+        }
+
+        void charge(long n) {
+            if (n > cells - used)
+                throw exceeded("stack", cells, "cells");
+            used += n;
+        }
+
+        void release(long n) {
+            used -= n;
+        }
+
+        void checkValue(long bytes) {
+            if (bytes > valueBytes)
+                throw exceeded("value size", valueBytes, "bytes");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+
+/**
+ * The list of stacks. It is a gap buffer: the free space sits wherever the last
+ * insertion or removal happened, so R and P at the current address cost O(1) as
+ * long as the address moves a few stacks at a time, while get stays an array load.
+ */
+public class LaserMemory implements Iterable<LaserStack> {
+    private LaserStack[] items = new LaserStack[16];
+    private int gapStart;
+    private int gapEnd = items.length;
+
+    public int size() {
+        return items.length - (gapEnd - gapStart);
+    }
+
+    public LaserStack get(int i) {
+        Objects.checkIndex(i, size());
+        return items[i < gapStart ? i : i + gapEnd - gapStart];
+    }
+
+    public void add(LaserStack stack) {
+        add(size(), stack);
+    }
+
+    public void add(int i, LaserStack stack) {
+        if (i < 0 || i > size())
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+        if (gapStart == gapEnd)
+            grow();
+        moveGap(i);
+        items[gapStart++] = stack;
+    }
+
+    public LaserStack remove(int i) {
+        Objects.checkIndex(i, size());
+        moveGap(i);
+        LaserStack stack = items[gapEnd];
+        items[gapEnd++] = null;
+        return stack;
+    }
+
+    public Iterator<LaserStack> iterator() {
+        return new Iterator<LaserStack>() {
+            private int i;
+
+            public boolean hasNext() {
+                return i < size();
+            }
+
+            public LaserStack next() {
+                if (i >= size())
+                    throw new NoSuchElementException();
+                return get(i++);
+            }
+        };
+    }
+
+    private void moveGap(int i) {
+        if (i < gapStart) {
+            int n = gapStart - i;
+            System.arraycopy(items, i, items, gapEnd - n, n);
+            Arrays.fill(items, i, Math.min(i + n, gapEnd - n), null);
+            gapStart = i;
+            gapEnd -= n;
+        } else if (i > gapStart) {
+            int n = i - gapStart;
+            System.arraycopy(items, gapEnd, items, gapStart, n);
+            Arrays.fill(items, Math.max(gapEnd, gapStart + n), gapEnd + n, null);
+            gapStart += n;
+            gapEnd += n;
+        }
+    }
+
+    private void grow() {
+        int cap = items.length;
+        LaserStack[] ni = new LaserStack[cap << 1];
+        int tail = cap - gapEnd;
+        System.arraycopy(items, 0, ni, 0, gapStart);
+        System.arraycopy(items, gapEnd, ni, ni.length - tail, tail);
+        items = ni;
+        gapEnd = ni.length - tail;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.*;
+
+/**
+ * Counters for what the interpreter does, kept per run in a plain long[] that only
+ * the running thread touches, and published about once a second (and when the run
+ * ends) into process-wide totals and a laser.Counters Flight Recorder event that
+ * covers the interval. Changes in stack depth are measured at publication rather
+ * than on every push and pop, from each stack's size at the previous one, and are
+ * also recorded as laser.Stack events.
+ *
+ * Runs without metrics allocate none of this; the only cost left is a null check
+ * per step taken outside a compiled trace.
+ */
+public final class LaserMetrics {
+    public static final int MIRROR = 0;
+    public static final int BRANCH = 1;
+    public static final int BIN_OP = 2;
+    public static final int UNARY_OP = 3;
+    public static final int LASER = 4;
+    public static final int IO = 5;
+    public static final int STACK = 6;
+    public static final int LITERAL = 7;
+    public static final int OTHER = 8;
+    public static final int LITERAL_CELLS = 9;
+    public static final int STACKS_CREATED = 10;
+    public static final int COUNTERS = 11;
+
+    static final int SLICE = 1 << 16;
+    private static final long PERIOD = 1000000000L;
+    private static final int MAX_STACK_EVENTS = 256;
+
+    private static final String[] NAMES = {
+        "mirror", "branch", "binop", "unaryop", "laser", "io", "stack", "literal", "other",
+        "literal cells", "stacks created"
+    };
+
+    private static final LongAdder[] TOTALS = new LongAdder[COUNTERS];
+    private static final LongAdder STEPS = new LongAdder();
+    private static final LongAdder OUTPUT_BYTES = new LongAdder();
+    private static final LongAdder GROWTH = new LongAdder();
+    private static final LongAdder SHRINK = new LongAdder();
+    private static final LongAdder RUNS = new LongAdder();
+    private static final LongAdder FAILURES = new LongAdder();
+
+    static {
+        for (int i = 0; i < COUNTERS; i++)
+            TOTALS[i] = new LongAdder();
+    }
+
+    final long[] counts = new long[COUNTERS];
+    private long steps;
+    private long output;
+    private int[] sizes = new int[0];
+    private long last = System.nanoTime();
+    private CountersEvent event = begin();
+
+    boolean due() {
+        return System.nanoTime() - last >= PERIOD;
+    }
+
+    void publish(long totalSteps, long totalOutput, LaserMemory memory) {
+        CountersEvent e = event;
+        long dSteps = totalSteps - steps;
+        long dOutput = totalOutput - output;
+        steps = totalSteps;
+        output = totalOutput;
+        STEPS.add(dSteps);
+        OUTPUT_BYTES.add(dOutput);
+        for (int i = 0; i < COUNTERS; i++)
+            TOTALS[i].add(counts[i]);
+
+        int n = memory.size();
+        if (sizes.length < n)
+            sizes = Arrays.copyOf(sizes, Math.max(n, sizes.length * 2));
+        long grown = 0;
+        long shrunk = 0;
+        int events = 0;
+        boolean stackEvents = new StackEvent().isEnabled();
+        for (int a = 0; a < sizes.length; a++) {
+            int size = a < n ? memory.get(a).size() : 0;
+            int d = size - sizes[a];
+            if (d == 0)
+                continue;
+            if (d > 0)
+                grown += d;
+            else
+                shrunk -= d;
+            sizes[a] = size;
+            if (stackEvents && events++ < MAX_STACK_EVENTS) {
+                StackEvent se = new StackEvent();
+                se.addr = a;
+                se.size = size;
+                se.change = d;
+                se.commit();
+            }
+        }
+        GROWTH.add(grown);
+        SHRINK.add(shrunk);
+
+        if (e.shouldCommit()) {
+            e.steps = dSteps;
+            e.mirrors = counts[MIRROR];
+            e.branches = counts[BRANCH];
+            e.binOps = counts[BIN_OP];
+            e.unaryOps = counts[UNARY_OP];
+            e.lasers = counts[LASER];
+            e.io = counts[IO];
+            e.stackOps = counts[STACK];
+            e.literals = counts[LITERAL];
+            e.literalCells = counts[LITERAL_CELLS];
+            e.stacksCreated = counts[STACKS_CREATED];
+            e.stackGrowth = grown;
+            e.stackShrink = shrunk;
+            e.outputBytes = dOutput;
+            e.stacks = n;
+            e.commit();
+        }
+        Arrays.fill(counts, 0);
+        last = System.nanoTime();
+        event = begin();
+    }
+
+    void finish(boolean ok) {
+        RUNS.increment();
+        if (!ok)
+            FAILURES.increment();
+    }
+
+    private static CountersEvent begin() {
+        CountersEvent e = new CountersEvent();
+        e.begin();
+        return e;
+    }
+
+    // Totals over every run with metrics in this process.
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("runs", RUNS.sum());
+        m.put("failed runs", FAILURES.sum());
+        m.put("steps", STEPS.sum());
+        for (int i = 0; i < COUNTERS; i++)
+            m.put(NAMES[i], TOTALS[i].sum());
+        m.put("stack growth", GROWTH.sum());
+        m.put("stack shrink", SHRINK.sum());
+        m.put("output bytes", OUTPUT_BYTES.sum());
+        return m;
+    }
+
+    public static void report(PrintStream err) {
+        err.println("metrics:");
+        for (Map.Entry<String, Long> e : snapshot().entrySet())
+            err.printf("%16s %14d%n", e.getKey(), e.getValue());
+        err.flush();
+    }
+
+    @Name("laser.Counters")
+    @Label("Laser Counters")
+    @Category("Laser")
+    @StackTrace(false)
+    @Description("What a Laser run did since the previous event")
+    static final class CountersEvent extends Event {
+        @Label("Steps")
+        long steps;
+        @Label("Mirrors")
+        long mirrors;
+        @Label("Branches")
+        long branches;
+        @Label("Binary Ops")
+        long binOps;
+        @Label("Unary Ops")
+        long unaryOps;
+        @Label("Laser Ops")
+        long lasers;
+        @Label("I/O Ops")
+        long io;
+        @Label("Stack Ops")
+        long stackOps;
+        @Label("Literals")
+        long literals;
+        @Label("Literal Cells")
+        long literalCells;
+        @Label("Stacks Created")
+        long stacksCreated;
+        @Label("Stack Growth")
+        long stackGrowth;
+        @Label("Stack Shrink")
+        long stackShrink;
+        @Label("Output Bytes")
+        @DataAmount
+        long outputBytes;
+        @Label("Stacks")
+        int stacks;
+    }
+
+    @Name("laser.Stack")
+    @Label("Laser Stack Depth")
+    @Category("Laser")
+    @StackTrace(false)
+    @Description("A stack whose depth changed since the previous laser.Counters event")
+    static final class StackEvent extends Event {
+        @Label("Address")
+        int addr;
+        @Label("Size")
+        int size;
+        @Label("Change")
+        int change;
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * Output sink for a Laser program. Values are encoded straight into a reusable
+ * UTF-8 byte buffer and written to the underlying channel according to the flush
+ * policy, so printing a stack never builds an intermediate String.
+ */
+public class LaserOutput {
+    public static final int FLUSH_ON_EXIT = 0;
+    public static final int FLUSH_ON_NEWLINE = 1;
+    public static final int FLUSH_ON_SIZE = 2;
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private final WritableByteChannel channel;
+    private final int policy;
+
+    private byte[] buf;
+    private int len;
+    private long written;
+    private long limit = Long.MAX_VALUE;
+    private boolean error;
+
+    public LaserOutput(WritableByteChannel channel, int policy, int capacity) {
+        this.channel = channel;
+        this.policy = policy;
+        this.buf = new byte[Math.max(capacity, 64)];
+    }
+
+    public LaserOutput(OutputStream out, int policy) {
+        this(Channels.newChannel(out), policy, DEFAULT_CAPACITY);
+    }
+
+    public static LaserOutput stdout(int policy) {
+        return new LaserOutput(new FileOutputStream(FileDescriptor.out).getChannel(), policy, DEFAULT_CAPACITY);
+    }
+
+    public boolean checkError() {
+        return error;
+    }
+
+    // Output past this many bytes is dropped and ends the run with a LimitError.
+    public void setLimit(long bytes) {
+        limit = bytes;
+    }
+
+    public long bytesWritten() {
+        return written + len;
+    }
+
+    public void print(long v) {
+        ensure(20);
+        if (v == Long.MIN_VALUE) {
+            System.arraycopy(MIN_LONG, 0, buf, len, MIN_LONG.length);
+            len += MIN_LONG.length;
+            return;
+        }
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte)('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    public void print(Object o) {
+        if (o instanceof Long)
+            print(((Long)o).longValue());
+        else
+            print(String.valueOf(o));
+    }
+
+    public void print(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (len == buf.length)
+                    ensure(1);
+                buf[len++] = (byte)c;
+            } else {
+                ensure(4);
+                if (c < 0x800) {
+                    buf[len++] = (byte)(0xc0 | c >> 6);
+                    buf[len++] = (byte)(0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte)(0xf0 | cp >> 18);
+                    buf[len++] = (byte)(0x80 | cp >> 12 & 0x3f);
+                    buf[len++] = (byte)(0x80 | cp >> 6 & 0x3f);
+                    buf[len++] = (byte)(0x80 | cp & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    buf[len++] = '?';
+                } else {
+                    buf[len++] = (byte)(0xe0 | c >> 12);
+                    buf[len++] = (byte)(0x80 | c >> 6 & 0x3f);
+                    buf[len++] = (byte)(0x80 | c & 0x3f);
+                }
+            }
+        }
+    }
+
+    // Bytes that are already encoded, such as the output of another run.
+    public void write(byte[] b, int off, int n) {
+        while (n > 0) {
+            if (len == buf.length)
+                ensure(1);
+            int k = Math.min(n, buf.length - len);
+            System.arraycopy(b, off, buf, len, k);
+            len += k;
+            off += k;
+            n -= k;
+        }
+    }
+
+    public void println() {
+        ensure(NEWLINE.length);
+        for (byte b : NEWLINE)
+            buf[len++] = b;
+        if (policy == FLUSH_ON_NEWLINE)
+            flush();
+    }
+
+    public void println(Object o) {
+        print(o);
+        println();
+    }
+
+    public void flush() {
+        if (len == 0)
+            return;
+        boolean over = len > limit - written;
+        if (over)
+            len = (int)Math.max(0, limit - written);
+        if (!error) {
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+                while (bb.hasRemaining())
+                    channel.write(bb);
+            } catch (IOException ioe) {
+                error = true;
+            }
+        }
+        written += len;
+        len = 0;
+        if (over)
+            throw LaserLimits.exceeded("output", limit, "bytes");
+    }
+
+    private void ensure(int n) {
+        if (len + n <= buf.length)
+            return;
+        if (policy == FLUSH_ON_EXIT && len + n <= limit - written) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        } else {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Execution counters for a profiled run: hits per cell and direction, executions
+ * per instruction, the deepest each stack got and the overall step rate. Every
+ * counter is a primitive array slot, so recording a step costs a few increments.
+ * The dense hit counters take 32 bytes per cell, so they are only used on grids
+ * of up to MAX_DENSE_CELLS cells (2 MB). Bigger grids, where most cells are
+ * usually never visited, count hits in a map of the cells the beam has crossed
+ * instead, which is slower but only costs memory for those cells.
+ */
+public class LaserProfile {
+    private static final String INSTRUCTIONS = "/\\><^v⌞⌜⌟⌝+-×÷*&|%gl=()rR!~cbnB\"`'LpPoOUDudswiI#0123456789";
+    private static final String SHADES = ".:-=+*%#@";
+    private static final int MAX_MAP_ROWS = 100;
+    private static final int MAX_MAP_COLS = 160;
+    private static final int TOP_CELLS = 10;
+    private static final long MAX_DENSE_CELLS = 1 << 16;
+
+    private final LaserGrid grid;
+    private final int cols;
+    private final long[] hits;
+    private final HashMap<Long, long[]> sparse;
+    private final long[] ops;
+    private int[] peaks;
+    private long steps;
+    private long start;
+    private long elapsed;
+
+    public LaserProfile(LaserGrid grid) {
+        this.grid = grid;
+        this.cols = grid.cols();
+        if ((long)grid.rows() * cols <= MAX_DENSE_CELLS) {
+            this.hits = new long[grid.rows() * cols * 4];
+            this.sparse = null;
+        } else {
+            this.hits = null;
+            this.sparse = new HashMap<Long, long[]>();
+        }
+        this.ops = new long[128];
+        this.peaks = new int[8];
+    }
+
+    void start() {
+        start = System.nanoTime();
+    }
+
+    void stop() {
+        elapsed += System.nanoTime() - start;
+    }
+
+    void hit(int row, int col, int dir) {
+        if (hits != null) {
+            hits[((row * cols + col) << 2) | dir]++;
+            return;
+        }
+        Long cell = (long)row * cols + col;
+        long[] h = sparse.get(cell);
+        if (h == null)
+            sparse.put(cell, h = new long[4]);
+        h[dir]++;
+    }
+
+    void instruction(int op) {
+        ops[op]++;
+    }
+
+    void depth(int addr, int size) {
+        if (addr >= peaks.length)
+            peaks = Arrays.copyOf(peaks, Math.max(addr + 1, peaks.length * 2));
+        if (size > peaks[addr])
+            peaks[addr] = size;
+    }
+
+    void steps(long n) {
+        steps = n;
+    }
+
+    public long hits(int row, int col) {
+        if (hits != null) {
+            int key = (row * cols + col) << 2;
+            return hits[key] + hits[key + 1] + hits[key + 2] + hits[key + 3];
+        }
+        long[] h = sparse.get((long)row * cols + col);
+        return h != null ? h[0] + h[1] + h[2] + h[3] : 0;
+    }
+
+    // hits of one cell by direction
+    private long[] directions(long cell) {
+        if (hits != null) {
+            int key = (int)cell << 2;
+            return Arrays.copyOfRange(hits, key, key + 4);
+        }
+        long[] h = sparse.get(cell);
+        return h != null ? h : new long[4];
+    }
+
+    public void report(PrintStream err) {
+        double secs = elapsed / 1e9;
+        err.printf("profile: %d steps in %.3f s (%.2f Msteps/s)%n", steps, secs, secs > 0 ? steps / secs / 1e6 : 0.0);
+
+        int rows = grid.rows();
+        long[] hottest = hottest();
+        long max = hottest.length > 0 ? hits((int)(hottest[0] / cols), (int)(hottest[0] % cols)) : 0;
+        err.println();
+        if (rows > MAX_MAP_ROWS || cols > MAX_MAP_COLS)
+            err.printf("heatmap (first %d rows, %d columns):%n", Math.min(rows, MAX_MAP_ROWS), Math.min(cols, MAX_MAP_COLS));
+        else
+            err.println("heatmap:");
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < rows && r < MAX_MAP_ROWS; r++) {
+            sb.setLength(0);
+            for (int c = 0; c < cols && c < MAX_MAP_COLS; c++)
+                sb.append(shade(hits(r, c), max));
+            err.println(sb.toString().replaceAll("\\s+$", ""));
+        }
+
+        err.println();
+        err.println("hottest cells:");
+        err.printf("%8s %8s %4s %14s %7s %12s %12s %12s %12s%n", "row", "col", "cell", "hits", "share", "north", "east", "south", "west");
+        for (long cell : hottest) {
+            int r = (int)(cell / cols);
+            int c = (int)(cell % cols);
+            long[] h = directions(cell);
+            long n = h[0] + h[1] + h[2] + h[3];
+            err.printf("%8d %8d %4s %14d %6.2f%% %12d %12d %12d %12d%n", r, c, name(grid.charAt(r, c)), n,
+                    steps > 0 ? n * 100.0 / steps : 0.0, h[0], h[1], h[2], h[3]);
+        }
+
+        err.println();
+        err.println("instructions:");
+        for (int i = 0; i < INSTRUCTIONS.length(); i++) {
+            char ch = INSTRUCTIONS.charAt(i);
+            long n = ops[Laser.opcode(ch)];
+            if (n > 0)
+                err.printf("%8s %14d%n", ch, n);
+        }
+
+        err.println();
+        err.println("peak stack depth:");
+        for (int a = 0; a < peaks.length; a++) {
+            if (peaks[a] > 0)
+                err.printf("%8d %14d%n", a, peaks[a]);
+        }
+        err.flush();
+    }
+
+    // the cells with the most hits, hottest first
+    // The hottest cells, most hits first and ties in grid order, so that the
+    // dense and sparse counters give the same report.
+    private long[] hottest() {
+        PriorityQueue<long[]> top = new PriorityQueue<long[]>(TOP_CELLS + 1, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]);
+            }
+        });
+        if (hits != null) {
+            for (int cell = 0; cell < hits.length >> 2; cell++)
+                offer(top, cell, hits(cell / cols, cell % cols));
+        } else {
+            for (Map.Entry<Long, long[]> e : sparse.entrySet()) {
+                long[] h = e.getValue();
+                offer(top, e.getKey(), h[0] + h[1] + h[2] + h[3]);
+            }
+        }
+        long[] cells = new long[top.size()];
+        for (int i = cells.length - 1; i >= 0; i--)
+            cells[i] = top.poll()[1];
+        return cells;
+    }
+
+    private static void offer(PriorityQueue<long[]> top, long cell, long n) {
+        if (n == 0)
+            return;
+        if (top.size() < TOP_CELLS || n > top.peek()[0] || (n == top.peek()[0] && cell < top.peek()[1])) {
+            top.add(new long[] {n, cell});
+            if (top.size() > TOP_CELLS)
+                top.poll();
+        }
+    }
+
+    // blank for cells never reached, otherwise a shade by order of magnitude
+    // relative to the hottest cell
+    private static char shade(long n, long max) {
+        if (n == 0)
+            return ' ';
+        double f = Math.log(n) / Math.log(Math.max(max, 2));
+        return SHADES.charAt(Math.min(SHADES.length() - 1, (int)(f * SHADES.length())));
+    }
+
+    private static String name(char ch) {
+        if (ch == '\0')
+            return "\\0";
+        return ch == ' ' ? "' '" : String.valueOf(ch);
+    }
+}
@@ -0,0 +1,841 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A single Laser stack. Numbers are stored unboxed in a ring buffer of longs so
+ * that arithmetic never allocates; the rare values that are not longs (strings and
+ * numbers too big for a long) live in parallel reference chunks that are only
+ * allocated once one is pushed into them. A BigInteger that fits in a long is
+ * always stored as a long.
+ * Index 0 is the top of the stack.
+ *
+ * The buffers are split into chunks of up to CHUNK elements. Copies share all of
+ * their chunks, so R is O(1); a stack that writes to a shared chunk first takes a
+ * private copy of that chunk alone (and, on its first write, of the table of
+ * chunks), so a copy that is only read or popped from never costs more than that
+ * and a write never copies more than one chunk. Shared chunks are never written
+ * to, so copies may end up on different threads.
+ *
+ * When hashing is switched on the stack also keeps a polynomial hash of its
+ * contents, sum(h(v_j) * BASE^j) over positions j counted from the bottom, which
+ * every mutation updates in constant time (setting an element costs a power).
+ */
+public class LaserStack {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK - 1;
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+    private static final long INVERSE = inverse(BASE);
+
+    public static final int SUM = 0;
+    public static final int PRODUCT = 1;
+    public static final int AND = 2;
+    public static final int OR = 3;
+
+    private static final int FOLD_CHUNK = 1 << 16;
+
+    private static final byte KIND_LONG = 0;
+    private static final byte KIND_BIG = 1;
+    private static final byte KIND_STRING = 2;
+
+    // ring slot s lives at vals[s >>> CHUNK_SHIFT][s & CHUNK_MASK]; every chunk
+    // holds min(cap, CHUNK) elements
+    private long[][] vals;
+    private Object[][] refs;
+    private int cap;
+    private int first;
+    private int size;
+    // the chunk tables, and every chunk, are shared with a copy
+    private boolean shared;
+    // the chunks this stack has copied since its tables were last shared, or null
+    // once it owns them all
+    private boolean[] mine;
+    private int owned;
+    private LaserLimits.Budget budget;
+
+    private boolean hashing;
+    private long hash;
+    private long scale = 1;
+
+    public LaserStack() {
+        this.vals = new long[1][INITIAL_CAPACITY];
+        this.cap = INITIAL_CAPACITY;
+    }
+
+    public LaserStack(LaserStack other) {
+        other.shared = true;
+        other.mine = null;
+        this.shared = true;
+        this.vals = other.vals;
+        this.refs = other.refs;
+        this.cap = other.cap;
+        this.first = other.first;
+        this.size = other.size;
+        this.hashing = other.hashing;
+        this.hash = other.hash;
+        this.scale = other.scale;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Charges the buffer to a run's budget, or releases it when b is null; later
+    // growth is charged as it happens.
+    void setBudget(LaserLimits.Budget b) {
+        if (budget != null)
+            budget.release(cap);
+        if (b != null)
+            b.charge(cap);
+        budget = b;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isNumber(int i) {
+        return refAt(slot(i)) == null;
+    }
+
+    public void push(long v) {
+        if (size == cap)
+            grow();
+        int s = (first + size) & (cap - 1);
+        setVal(s, v);
+        size++;
+        if (hashing)
+            pushHash(mix(v));
+    }
+
+    public void push(Object o) {
+        o = demote(o);
+        if (o instanceof Long) {
+            push(((Long)o).longValue());
+            return;
+        }
+        if (size == cap)
+            grow();
+        int s = (first + size) & (cap - 1);
+        ref(s, o);
+        size++;
+        if (hashing)
+            pushHash(hashOf(o));
+    }
+
+    // Pushes the characters of s as numbers, the first one on top, growing the
+    // buffer once instead of per character.
+    public void pushChars(String s) {
+        int n = s.length();
+        while (cap - size < n)
+            grow();
+        int mask = cap - 1;
+        for (int i = n - 1; i >= 0; i--) {
+            long v = s.charAt(i);
+            setVal((first + size) & mask, v);
+            size++;
+            if (hashing)
+                pushHash(mix(v));
+        }
+    }
+
+    // Pops the numbers on top that fit in an int and returns them as characters,
+    // the top one first.
+    public String popChars() {
+        int n = 0;
+        while (n < size && isNumber(n) && (int)getLong(n) == getLong(n))
+            n++;
+        char[] cs = new char[n];
+        for (int i = 0; i < n; i++) {
+            long v = val(slot(0));
+            cs[i] = (char)v;
+            if (hashing)
+                popHash(mix(v));
+            size--;
+        }
+        return new String(cs);
+    }
+
+    public Object pop() {
+        Object o = peek();
+        if (o == null)
+            throw new NoSuchElementException();
+        size--;
+        clearRef((first + size) & (cap - 1));
+        if (hashing)
+            popHash(hashOf(o));
+        return o;
+    }
+
+    public long popLong() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        int s = (first + size - 1) & (cap - 1);
+        Object o = refAt(s);
+        if (o != null)
+            throw new ClassCastException(o.getClass().getName() + " cannot be cast to java.lang.Long");
+        size--;
+        long v = val(s);
+        if (hashing)
+            popHash(mix(v));
+        return v;
+    }
+
+    public Object peek() {
+        return size == 0 ? null : get(0);
+    }
+
+    public long getLong(int i) {
+        return val(slot(i));
+    }
+
+    public Object get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        int s = slot(i);
+        Object o = refAt(s);
+        if (o != null)
+            return o;
+        return Long.valueOf(val(s));
+    }
+
+    public void set(int i, long v) {
+        int s = slot(i);
+        if (hashing)
+            hash += (mix(v) - hashAt(s)) * weight(i);
+        setVal(s, v);
+    }
+
+    public void set(int i, Object o) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        o = demote(o);
+        if (o instanceof Long) {
+            set(i, ((Long)o).longValue());
+            return;
+        }
+        int s = slot(i);
+        if (hashing)
+            hash += (hashOf(o) - hashAt(s)) * weight(i);
+        ref(s, o);
+    }
+
+    public Object removeLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        Object o = get(size - 1);
+        clearRef(first);
+        first = (first + 1) & (cap - 1);
+        size--;
+        if (hashing) {
+            hash = (hash - hashOf(o)) * INVERSE;
+            scale *= INVERSE;
+        }
+        return o;
+    }
+
+    public void add(Object o) {
+        if (size == cap)
+            grow();
+        first = (first - 1) & (cap - 1);
+        size++;
+        o = demote(o);
+        if (o instanceof Long) {
+            setVal(first, (Long)o);
+        } else {
+            ref(first, o);
+        }
+        if (hashing) {
+            hash = hash * BASE + hashOf(o);
+            scale *= BASE;
+        }
+    }
+
+    // Number of elements from the top down to the first non-number.
+    public int numberRun() {
+        if (refs == null)
+            return size;
+        for (int i = 0; i < size; i++) {
+            if (refAt(slot(i)) != null)
+                return i;
+        }
+        return size;
+    }
+
+    // The bulk operations below work on the top n elements, which must all be
+    // numbers. They run as plain loops over the part of each chunk that the range
+    // covers, which the JIT unrolls and vectorizes.
+
+    public void increment(int n, long d) {
+        int s = start(n);
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            int k = own(q);
+            long[] c = vals[k];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                c[i] += d;
+            p += e - o;
+        }
+        rehash();
+    }
+
+    public void negate(int n) {
+        int s = start(n);
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            int k = own(q);
+            long[] c = vals[k];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                c[i] = -c[i];
+            p += e - o;
+        }
+        rehash();
+    }
+
+    public void complement(int n) {
+        int s = start(n);
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            int k = own(q);
+            long[] c = vals[k];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                c[i] = ~c[i];
+            p += e - o;
+        }
+        rehash();
+    }
+
+    public void map(int n, LongUnaryOperator f) {
+        int s = start(n);
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            int k = own(q);
+            long[] c = vals[k];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                c[i] = f.applyAsLong(c[i]);
+            p += e - o;
+        }
+        rehash();
+    }
+
+    // The exact sum, as a Long when it fits. The high and low 32 bits of the
+    // elements are summed separately so that neither accumulator can overflow.
+    public Number sum(int n) {
+        int s = start(n);
+        long hi = 0;
+        long lo = 0;
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            long[] c = vals[q >>> CHUNK_SHIFT];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++) {
+                hi += c[i] >> 32;
+                lo += c[i] & 0xFFFFFFFFL;
+            }
+            p += e - o;
+        }
+        return combine(hi, lo);
+    }
+
+    // hi * 2^32 + lo, where lo is a sum of unsigned low halves.
+    private static Number combine(long hi, long lo) {
+        if (hi >= Integer.MIN_VALUE && hi <= Integer.MAX_VALUE) {
+            long h = hi << 32;
+            long r = h + lo;
+            if (((h ^ r) & (lo ^ r)) >= 0)
+                return r;
+        }
+        return BigInteger.valueOf(hi).shiftLeft(32).add(BigInteger.valueOf(lo));
+    }
+
+    // The exact product, as a Long when it fits.
+    public Number product(int n) {
+        long r = 1;
+        BigInteger big = null;
+        for (int i = 0; i < n; i++) {
+            long v = val(slot(i));
+            if (big != null) {
+                big = big.multiply(BigInteger.valueOf(v));
+                if (big.signum() == 0)
+                    return 0L;
+            } else if (Math.multiplyHigh(r, v) != (r * v) >> 63) {
+                big = BigInteger.valueOf(r).multiply(BigInteger.valueOf(v));
+            } else {
+                r *= v;
+            }
+        }
+        return big != null ? (Number)demote(big) : (Number)r;
+    }
+
+    public long and(int n) {
+        int s = start(n);
+        long r = -1;
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            long[] c = vals[q >>> CHUNK_SHIFT];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                r &= c[i];
+            p += e - o;
+        }
+        return r;
+    }
+
+    public long or(int n) {
+        int s = start(n);
+        long r = 0;
+        for (int p = 0; p < n; ) {
+            int q = (s + p) & (cap - 1);
+            long[] c = vals[q >>> CHUNK_SHIFT];
+            int o = q & CHUNK_MASK;
+            int e = Math.min(c.length, o + n - p);
+            for (int i = o; i < e; i++)
+                r |= c[i];
+            p += e - o;
+        }
+        return r;
+    }
+
+    /**
+     * sum, product, and or or of the top n elements, which must all be longs, split
+     * into chunks that are reduced on the current fork-join pool (the common pool
+     * outside one). Chunk results are combined left to right with exact arithmetic,
+     * so the result is the same as the sequential fold's.
+     */
+    public Number fold(int kind, int n) {
+        Object r = new Fold(vals, start(n), cap - 1, kind, 0, n).invoke();
+        if (kind == SUM) {
+            long[] hl = (long[])r;
+            return combine(hl[0], hl[1]);
+        }
+        return (Number)r;
+    }
+
+    private static final class Fold extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final long[][] vals;
+        private final int start;
+        private final int mask;
+        private final int kind;
+        private final int from;
+        private final int to;
+
+        Fold(long[][] vals, int start, int mask, int kind, int from, int to) {
+            this.vals = vals;
+            this.start = start;
+            this.mask = mask;
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Object compute() {
+            if (to - from <= FOLD_CHUNK)
+                return leaf();
+            int mid = (from + to) >>> 1;
+            Fold right = new Fold(vals, start, mask, kind, mid, to);
+            right.fork();
+            Object a = new Fold(vals, start, mask, kind, from, mid).compute();
+            Object b = right.join();
+            switch (kind) {
+                case SUM:
+                    long[] x = (long[])a;
+                    long[] y = (long[])b;
+                    return new long[] {x[0] + y[0], x[1] + y[1]};
+                case PRODUCT:
+                    return multiply((Number)a, (Number)b);
+                case AND:
+                    return (Long)a & (Long)b;
+                default:
+                    return (Long)a | (Long)b;
+            }
+        }
+
+        private Object leaf() {
+            long hi = 0;
+            long lo = kind == AND ? -1 : 0;
+            long r = 1;
+            BigInteger big = null;
+            for (int k = from; k < to; k++) {
+                int s = (start + k) & mask;
+                long v = vals[s >>> CHUNK_SHIFT][s & CHUNK_MASK];
+                switch (kind) {
+                    case SUM:
+                        hi += v >> 32;
+                        lo += v & 0xFFFFFFFFL;
+                        break;
+                    case PRODUCT:
+                        if (big != null) {
+                            big = big.multiply(BigInteger.valueOf(v));
+                            if (big.signum() == 0)
+                                return 0L;
+                        } else if (Math.multiplyHigh(r, v) != (r * v) >> 63) {
+                            big = BigInteger.valueOf(r).multiply(BigInteger.valueOf(v));
+                        } else {
+                            r *= v;
+                        }
+                        break;
+                    case AND:
+                        lo &= v;
+                        break;
+                    default:
+                        lo |= v;
+                }
+            }
+            if (kind == SUM)
+                return new long[] {hi, lo};
+            if (kind == PRODUCT)
+                return big != null ? (Number)demote(big) : (Number)r;
+            return lo;
+        }
+
+        private static Number multiply(Number a, Number b) {
+            if (a instanceof Long && b instanceof Long) {
+                long x = (Long)a;
+                long y = (Long)b;
+                if (Math.multiplyHigh(x, y) == (x * y) >> 63)
+                    return x * y;
+            }
+            return (Number)demote(toBig(a).multiply(toBig(b)));
+        }
+
+        private static BigInteger toBig(Number n) {
+            return n instanceof BigInteger ? (BigInteger)n : BigInteger.valueOf(n.longValue());
+        }
+    }
+
+    public void drop(int n) {
+        size -= n;
+        rehash();
+    }
+
+    public boolean isHashing() {
+        return hashing;
+    }
+
+    public void setHashing(boolean on) {
+        hashing = on;
+        hash = 0;
+        scale = 1;
+        if (on) {
+            for (int i = size - 1; i >= 0; i--)
+                pushHash(hashAt(slot(i)));
+        }
+    }
+
+    public long contentHash() {
+        return hash;
+    }
+
+    public boolean contentEquals(LaserStack other) {
+        if (size != other.size)
+            return false;
+        for (int i = 0; i < size; i++) {
+            boolean num = isNumber(i);
+            if (num != other.isNumber(i))
+                return false;
+            if (num ? getLong(i) != other.getLong(i) : !get(i).equals(other.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the stack column by column from the bottom up: the size, a kind byte
+    // per element unless they are all longs, the longs in one block, then the
+    // strings and big numbers.
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        boolean mixed = numberRun() < size;
+        out.writeBoolean(mixed);
+        int longs = 0;
+        if (mixed) {
+            byte[] kinds = new byte[size];
+            for (int i = 0; i < size; i++) {
+                Object o = refAt(slot(size - 1 - i));
+                kinds[i] = o == null ? KIND_LONG : o instanceof BigInteger ? KIND_BIG : KIND_STRING;
+                if (o == null)
+                    longs++;
+            }
+            out.write(kinds);
+        } else {
+            longs = size;
+        }
+        out.writeInt(longs);
+        ByteBuffer bb = ByteBuffer.allocate(8 * Math.min(longs, 8192));
+        for (int i = size - 1; i >= 0; i--) {
+            if (!isNumber(i))
+                continue;
+            bb.putLong(val(slot(i)));
+            if (!bb.hasRemaining()) {
+                out.write(bb.array(), 0, bb.position());
+                bb.clear();
+            }
+        }
+        out.write(bb.array(), 0, bb.position());
+        for (int i = size - 1; i >= 0; i--) {
+            Object o = refAt(slot(i));
+            if (o != null)
+                writeBytes(out, o instanceof BigInteger
+                        ? ((BigInteger)o).toByteArray()
+                        : o.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static LaserStack readFrom(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        byte[] kinds = null;
+        if (in.readBoolean()) {
+            kinds = new byte[n];
+            in.readFully(kinds);
+        }
+        int longs = in.readInt();
+        long[] column = new long[longs];
+        byte[] chunk = new byte[8 * Math.min(longs, 8192)];
+        for (int i = 0; i < longs; ) {
+            int k = Math.min(longs - i, 8192);
+            in.readFully(chunk, 0, 8 * k);
+            ByteBuffer.wrap(chunk, 0, 8 * k).asLongBuffer().get(column, i, k);
+            i += k;
+        }
+        LaserStack stack = new LaserStack();
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            int kind = kinds == null ? KIND_LONG : kinds[i];
+            if (kind == KIND_LONG)
+                stack.push(column[next++]);
+            else if (kind == KIND_BIG)
+                stack.push(new BigInteger(readBytes(in)));
+            else
+                stack.push(new String(readBytes(in), StandardCharsets.UTF_8));
+        }
+        return stack;
+    }
+
+    static void writeValue(DataOutputStream out, Object o) throws IOException {
+        if (o instanceof Long) {
+            out.writeByte(KIND_LONG);
+            out.writeLong((Long)o);
+        } else if (o instanceof BigInteger) {
+            out.writeByte(KIND_BIG);
+            writeBytes(out, ((BigInteger)o).toByteArray());
+        } else {
+            out.writeByte(KIND_STRING);
+            writeBytes(out, o.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        int kind = in.readByte();
+        if (kind == KIND_LONG)
+            return in.readLong();
+        if (kind == KIND_BIG)
+            return demote(new BigInteger(readBytes(in)));
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(get(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    // first ring slot of the top n elements
+    private int start(int n) {
+        return (first + size - n) & (cap - 1);
+    }
+
+    private void rehash() {
+        if (hashing)
+            setHashing(true);
+    }
+
+    private void pushHash(long h) {
+        hash += h * scale;
+        scale *= BASE;
+    }
+
+    private void popHash(long h) {
+        scale *= INVERSE;
+        hash -= h * scale;
+    }
+
+    // BASE^(size - 1 - i), the weight of the element i places below the top
+    private long weight(int i) {
+        long w = scale;
+        long b = INVERSE;
+        for (int e = i + 1; e > 0; e >>= 1) {
+            if ((e & 1) != 0)
+                w *= b;
+            b *= b;
+        }
+        return w;
+    }
+
+    private long hashAt(int s) {
+        Object o = refAt(s);
+        if (o != null)
+            return hashOf(o);
+        return mix(val(s));
+    }
+
+    private static Object demote(Object o) {
+        if (o instanceof BigInteger && ((BigInteger)o).bitLength() < 64)
+            return ((BigInteger)o).longValue();
+        return o;
+    }
+
+    private static long hashOf(Object o) {
+        if (o instanceof Long)
+            return mix((Long)o);
+        if (o instanceof BigInteger)
+            return mix(o.hashCode() ^ 0x2545F4914F6CDD1DL);
+        String str = o.toString();
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < str.length(); i++)
+            h = (h ^ str.charAt(i)) * 0x100000001B3L;
+        return mix(h ^ str.length()) ^ 0x5DEECE66DL;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static long inverse(long b) {
+        long x = b;
+        for (int i = 0; i < 6; i++)
+            x *= 2 - b * x;
+        return x;
+    }
+
+    private int slot(int i) {
+        return (first + size - 1 - i) & (cap - 1);
+    }
+
+    private long val(int s) {
+        return vals[s >>> CHUNK_SHIFT][s & CHUNK_MASK];
+    }
+
+    private Object refAt(int s) {
+        if (refs == null)
+            return null;
+        Object[] c = refs[s >>> CHUNK_SHIFT];
+        return c == null ? null : c[s & CHUNK_MASK];
+    }
+
+    private void setVal(int s, long v) {
+        int k = own(s);
+        vals[k][s & CHUNK_MASK] = v;
+        if (refs != null && refs[k] != null)
+            refs[k][s & CHUNK_MASK] = null;
+    }
+
+    private void ref(int s, Object o) {
+        int k = own(s);
+        if (refs == null)
+            refs = new Object[vals.length][];
+        if (refs[k] == null)
+            refs[k] = new Object[vals[k].length];
+        refs[k][s & CHUNK_MASK] = o;
+    }
+
+    // Drops the reference in slot s, which is no longer on the stack, so that it
+    // can be collected; a shared chunk is left alone.
+    private void clearRef(int s) {
+        if (refs == null)
+            return;
+        int k = s >>> CHUNK_SHIFT;
+        if (refs[k] != null && !shared && (mine == null || mine[k]))
+            refs[k][s & CHUNK_MASK] = null;
+    }
+
+    // Makes the chunk holding ring slot s private before a write, and returns
+    // its index.
+    private int own(int s) {
+        int k = s >>> CHUNK_SHIFT;
+        if (shared || mine != null)
+            ownChunk(k);
+        return k;
+    }
+
+    private void ownChunk(int k) {
+        if (shared) {
+            vals = vals.clone();
+            if (refs != null)
+                refs = refs.clone();
+            mine = new boolean[vals.length];
+            owned = 0;
+            shared = false;
+        }
+        if (!mine[k]) {
+            vals[k] = vals[k].clone();
+            if (refs != null && refs[k] != null)
+                refs[k] = refs[k].clone();
+            mine[k] = true;
+            if (++owned == vals.length)
+                mine = null;
+        }
+    }
+
+    private void grow() {
+        if (budget != null)
+            budget.charge(cap);
+        int ncap = cap << 1;
+        int len = Math.min(ncap, CHUNK);
+        long[][] nv = new long[ncap / len][len];
+        Object[][] nr = refs == null ? null : new Object[nv.length][];
+        for (int p = 0; p < cap; ) {
+            int s = (first + p) & (cap - 1);
+            int k = s >>> CHUNK_SHIFT;
+            int o = s & CHUNK_MASK;
+            int n = Math.min(Math.min(vals[k].length - o, len - (p & CHUNK_MASK)), cap - p);
+            System.arraycopy(vals[k], o, nv[p >>> CHUNK_SHIFT], p & CHUNK_MASK, n);
+            if (nr != null && refs[k] != null) {
+                if (nr[p >>> CHUNK_SHIFT] == null)
+                    nr[p >>> CHUNK_SHIFT] = new Object[len];
+                System.arraycopy(refs[k], o, nr[p >>> CHUNK_SHIFT], p & CHUNK_MASK, n);
+            }
+            p += n;
+        }
+        vals = nv;
+        refs = nr;
+        cap = ncap;
+        first = 0;
+        shared = false;
+        mine = null;
+    }
+}
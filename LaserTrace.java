@@ -0,0 +1,178 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * A flight recorder for Laser runs. Every step is written as one fixed-width
+ * binary record into a ring buffer that keeps the last N steps, either on the heap
+ * or in a memory-mapped file that survives the process. Running this class on a
+ * trace file prints its records the way verbose mode would.
+ *
+ * The buffer starts with a header: the magic number, the record size, the ring
+ * capacity and the number of records ever written. Each record holds
+ *   step (8), row (4), col (4), cell (2), dir (1), flags (1), addr (4), stack size (4), top (8)
+ * where the flags give the parse mode and whether the top of the stack is a number,
+ * a number too big for a long (top is then its bit length), a string (top is then
+ * its length) or missing, and the rest is padding.
+ *
+ * Usage: java LaserTrace <trace file> [-last N]
+ */
+public class LaserTrace {
+    public static final int RECORD_SIZE = 40;
+    public static final int HEADER_SIZE = 32;
+    private static final long MAGIC = 0x4C53525452414345L;
+
+    private static final int TOP_NONE = 0;
+    private static final int TOP_NUMBER = 1;
+    private static final int TOP_STRING = 2;
+    private static final int TOP_BIG = 3;
+
+    private static final String DIRS = "NESW";
+
+    private final ByteBuffer buf;
+    private final int capacity;
+    private long count;
+    private int next;
+
+    public LaserTrace(int capacity) {
+        this(ByteBuffer.allocate(size(capacity)), capacity);
+    }
+
+    private LaserTrace(ByteBuffer buf, int capacity) {
+        this.buf = buf;
+        this.capacity = capacity;
+        buf.putLong(0, MAGIC);
+        buf.putInt(8, RECORD_SIZE);
+        buf.putInt(12, capacity);
+        buf.putLong(16, 0);
+    }
+
+    public static LaserTrace map(String file, int capacity) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new LaserTrace(ch.map(FileChannel.MapMode.READ_WRITE, 0, size(capacity)), capacity);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private static int size(int capacity) {
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE)
+            throw new IllegalArgumentException("trace capacity must be between 1 and "
+                    + (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE + " steps");
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    void record(long step, int row, int col, char cell, int dir, int mode, int addr, LaserStack stack) {
+        int off = HEADER_SIZE + next * RECORD_SIZE;
+        int size = stack == null ? 0 : stack.size();
+        int kind = TOP_NONE;
+        long top = 0;
+        if (size > 0) {
+            if (stack.isNumber(0)) {
+                kind = TOP_NUMBER;
+                top = stack.getLong(0);
+            } else if (stack.get(0) instanceof BigInteger) {
+                kind = TOP_BIG;
+                top = ((BigInteger)stack.get(0)).bitLength();
+            } else {
+                kind = TOP_STRING;
+                top = stack.get(0).toString().length();
+            }
+        }
+        buf.putLong(off, step);
+        buf.putInt(off + 8, row);
+        buf.putInt(off + 12, col);
+        buf.putChar(off + 16, cell);
+        buf.put(off + 18, (byte)dir);
+        buf.put(off + 19, (byte)(kind | (mode - Laser.INSTRUCTION_MODE) << 2));
+        buf.putInt(off + 20, addr);
+        buf.putInt(off + 24, size);
+        buf.putLong(off + 28, top);
+        if (++next == capacity)
+            next = 0;
+        buf.putLong(16, ++count);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // Writes a mapped trace back to its file.
+    public void finish() {
+        if (buf instanceof MappedByteBuffer)
+            ((MappedByteBuffer)buf).force();
+    }
+
+    public void dump(PrintStream out, int last) {
+        finish();
+        render(buf, out, last);
+    }
+
+    public static void render(ByteBuffer buf, PrintStream out, int last) {
+        if (buf.limit() < HEADER_SIZE || buf.getLong(0) != MAGIC)
+            throw new IllegalArgumentException("not a Laser trace");
+        int recordSize = buf.getInt(8);
+        int cap = buf.getInt(12);
+        long total = buf.getLong(16);
+        long n = Math.min(Math.min(total, cap), last);
+        if (total > n)
+            out.println("... " + (total - n) + " earlier records not shown");
+        for (long i = total - n; i < total; i++) {
+            int off = HEADER_SIZE + (int)(i % cap) * recordSize;
+            int flags = buf.get(off + 19);
+            int kind = flags & 3;
+            long top = buf.getLong(off + 28);
+            StringBuilder sb = new StringBuilder();
+            sb.append("step: ").append(buf.getLong(off))
+                    .append("\tpos: ").append(buf.getInt(off + 8)).append(',').append(buf.getInt(off + 12))
+                    .append(' ').append(DIRS.charAt(buf.get(off + 18)))
+                    .append("\tcurr: ").append(buf.getChar(off + 16));
+            if ((flags >> 2) != 0)
+                sb.append("\tmode: ").append(mode(Laser.INSTRUCTION_MODE + (flags >> 2)));
+            sb.append("\taddr: ").append(buf.getInt(off + 20))
+                    .append("\tsize: ").append(buf.getInt(off + 24))
+                    .append("\ttop: ");
+            if (kind == TOP_NUMBER)
+                sb.append(top);
+            else if (kind == TOP_STRING)
+                sb.append("<string of length ").append(top).append('>');
+            else if (kind == TOP_BIG)
+                sb.append("<number of ").append(top).append(" bits>");
+            else
+                sb.append('-');
+            out.println(sb);
+        }
+    }
+
+    private static String mode(int mode) {
+        switch (mode) {
+            case Laser.STRING_MODE: return "string";
+            case Laser.NUMBER_MODE: return "number";
+            case Laser.RAW_MODE: return "raw";
+        }
+        return "instruction";
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: LaserTrace <trace file> <-last N>");
+            System.exit(1);
+        }
+        int last = Integer.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-last") && i + 1 < args.length)
+                last = Integer.parseInt(args[++i]);
+        }
+        FileChannel ch = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ);
+        try {
+            render(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), System.out, last);
+        } finally {
+            ch.close();
+        }
+        System.out.flush();
+    }
+}
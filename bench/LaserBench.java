@@ -0,0 +1,85 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Benchmark harness for the interpreter. Each program is loaded once, run a number
+ * of warmup iterations so the JIT settles, then timed over the measured iterations
+ * with its output discarded.
+ *
+ * Usage: java -cp .:bench LaserBench [-w warmups] [-i iterations] [program.lsr ...]
+ */
+public class LaserBench {
+    public static void main(String[] args) throws IOException {
+        int warmups = 5;
+        int iterations = 10;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-w")) {
+                warmups = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            File[] found = new File("bench").listFiles();
+            if (found != null) {
+                for (File f : found) {
+                    if (f.getName().endsWith(".lsr"))
+                        files.add(f.getPath());
+                }
+            }
+            Collections.sort(files);
+        }
+
+        System.out.printf("%-28s %14s %12s %10s %10s %10s %12s%n",
+                "program", "steps/run", "Msteps/s", "mean ms", "p50 ms", "max ms", "alloc MB/run");
+        for (String file : files) {
+            bench(file, warmups, iterations);
+        }
+    }
+
+    private static void bench(String file, int warmups, int iterations) throws IOException {
+        Laser.Program prog = Laser.Program.load(file);
+
+        for (int i = 0; i < warmups; i++) {
+            runOnce(prog);
+        }
+
+        long[] nanos = new long[iterations];
+        long steps = 0;
+        long alloc = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            steps = runOnce(prog);
+            nanos[i] = System.nanoTime() - start;
+            alloc += allocatedBytes() - allocBefore;
+        }
+
+        long total = 0;
+        for (long n : nanos)
+            total += n;
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        String name = new File(file).getName();
+        System.out.printf("%-28s %14d %12.2f %10.2f %10.2f %10.2f %12.2f%n",
+                name, steps, steps * 1e3 * iterations / total, total / 1e6 / iterations,
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length - 1] / 1e6,
+                alloc / 1048576.0 / iterations);
+    }
+
+    private static long runOnce(Laser.Program prog) {
+        LaserOutput out = new LaserOutput(OutputStream.nullOutputStream(), LaserOutput.FLUSH_ON_SIZE);
+        return prog.execute(Collections.emptyList(), out).steps();
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
@@ -0,0 +1,33 @@
+#!/bin/sh
+# Builds an AppCDS archive of the classes the command line interpreter loads, by
+# running a program once with -XX:ArchiveClassesAtExit (JDK 13 or later).
+# Starting from the archive skips loading and verifying those classes again.
+# CDS only archives classes loaded from jars, so the compiled classes are packed
+# into laser.jar next to the archive first. Without a classes dir the sources are
+# compiled into build/classes; only the .class files go into the jar.
+#
+# Usage: scripts/appcds.sh [classes dir] [archive] [training program.lsr]
+
+set -e
+dir=$(dirname "$0")
+classes=${1:-$dir/../build/classes}
+archive=${2:-laser.jsa}
+program=${3:-$dir/../helloworld.lsr}
+jar=$(dirname "$archive")/laser.jar
+
+if [ -z "$1" ]; then
+    mkdir -p "$classes"
+    javac -encoding UTF-8 -d "$classes" "$dir"/../*.java
+fi
+set --
+for f in "$classes"/*.class; do
+    set -- "$@" -C "$classes" "$(basename "$f")"
+done
+if [ $# -eq 0 ]; then
+    echo "no .class files in $classes" >&2
+    exit 1
+fi
+jar cf "$jar" "$@"
+java -XX:ArchiveClassesAtExit="$archive" -cp "$jar" Laser "$program" > /dev/null
+echo "wrote $jar and $archive; run programs with:"
+echo "  java -XX:SharedArchiveFile=$archive -XX:TieredStopAtLevel=1 -cp $jar Laser program.lsr"
@@ -0,0 +1,52 @@
+#!/usr/bin/env bash
+# Runs a program on a daemon started with `java Laser -daemon`, printing its
+# output and exiting with its status as `java Laser` would.
+#
+# Usage: scripts/laser-client.sh [-port N] program.lsr [args...]
+# The port can also be set with LASER_PORT.
+
+port=${LASER_PORT:-4747}
+if [ "$1" = "-port" ]; then
+    port=$2
+    shift 2
+fi
+if [ $# -lt 1 ]; then
+    echo "Usage: laser-client.sh [-port N] <program.lsr> [args...]" >&2
+    exit 1
+fi
+
+quote() {
+    case $1 in
+        \"*) printf '%s' "$1" ;;
+        *[[:space:]]*) printf '"%s"' "$1" ;;
+        *) printf '%s' "$1" ;;
+    esac
+}
+
+prog=$1
+shift
+case $prog in
+    /*) ;;
+    *) prog=$PWD/$prog ;;
+esac
+req=$(quote "$prog")
+for arg in "$@"; do
+    req="$req $(quote "$arg")"
+done
+
+exec 3<>"/dev/tcp/127.0.0.1/$port" || exit 1
+printf '%s\n' "$req" >&3
+
+# awk rather than a read loop: bash reads sockets a byte at a time.
+awk '
+    /^1/ { printf "%s%s", nl, substr($0, 2); nl = "\n"; next }
+    $0 == "n" { nl = ""; next }
+    /^3/ { printf "%s", nl; nl = ""; fflush(); print substr($0, 2) > "/dev/stderr"; next }
+    /^0/ { printf "%s", nl; done = 1; exit substr($0, 2) + 0 }
+    END {
+        if (!done) {
+            print "DaemonError: connection closed before the program finished" > "/dev/stderr"
+            exit 1
+        }
+    }
+' <&3
@@ -0,0 +1,30 @@
+#!/bin/sh
+# Runs the regression programs in tests. Each name.lsr is run with the flags in
+# name.args (if there is one) and its stdout and stderr together must match
+# name.out exactly. Without a classes dir the sources are compiled into
+# build/classes first.
+#
+# Usage: scripts/run-tests.sh [classes dir]
+
+dir=$(dirname "$0")
+classes=${1:-$dir/../build/classes}
+
+if [ -z "$1" ]; then
+    mkdir -p "$classes" || exit 1
+    javac -encoding UTF-8 -d "$classes" "$dir"/../*.java || exit 1
+fi
+failed=0
+for prog in "$dir"/../tests/*.lsr; do
+    name=${prog%.lsr}
+    args=
+    [ -f "$name.args" ] && args=$(cat "$name.args")
+    # args holds plain flags, so word splitting is what we want here
+    # shellcheck disable=SC2086
+    if java -cp "$classes" Laser "$prog" $args < /dev/null 2>&1 | cmp -s - "$name.out"; then
+        echo "ok   $(basename "$name")"
+    else
+        echo "FAIL $(basename "$name")"
+        failed=1
+    fi
+done
+exit $failed